@@ -0,0 +1,62 @@
+package com.blescent.protocol.benchmark;
+
+import com.blescent.protocol.Frame;
+import com.blescent.protocol.FrameDecoder;
+import com.blescent.protocol.Opcodes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode throughput when every frame arrives in a single notification. With -prof gc the
+ * gc.alloc.rate.norm column is the allocation per decoded frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"0", "3", "256"})
+    public int payloadLength;
+
+    private byte[] frame;
+    private FrameDecoder decoder;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        frame = Frames.response(Opcodes.READ_TRACK, payloadLength);
+        decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                DecodeBenchmark.this.blackhole.consume(frame.getOpcode());
+            }
+
+            @Override
+            public void onDiscarded(int reason, int byteCount) {
+                throw new IllegalStateException("Discarded " + byteCount + " bytes, reason " + reason);
+            }
+        });
+    }
+
+    @Benchmark
+    public void decode() {
+        decoder.feed(frame, 0, frame.length);
+    }
+}
@@ -0,0 +1,94 @@
+package com.blescent.protocol.benchmark;
+
+import com.blescent.protocol.FrameEncoder;
+import com.blescent.protocol.Opcodes;
+import com.blescent.protocol.PlayFrameCache;
+import com.blescent.protocol.SettingsFramePool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode throughput for payload-less commands, a typical playScent, a settings write and a
+ * full stored track, and for the shared, cached and pooled frames the library sends instead
+ * where it can.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"0", "8", "256"})
+    public int payloadLength;
+
+    private byte[] payload;
+    private byte[] destination;
+    private byte[] scentCode;
+    private final PlayFrameCache playFrames = new PlayFrameCache();
+    private final SettingsFramePool settingsFrames = new SettingsFramePool();
+    private int fanSpeed;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadLength];
+        destination = new byte[FrameEncoder.frameLength(payloadLength)];
+        scentCode = "A1".getBytes();
+    }
+
+    @Benchmark
+    public byte[] pack() {
+        return FrameEncoder.pack(Opcodes.WRITE_TRACK, payload);
+    }
+
+    @Benchmark
+    public int packIntoBuffer() {
+        return FrameEncoder.pack(Opcodes.WRITE_TRACK, payload, 0, payload.length, destination, 0);
+    }
+
+    @Benchmark
+    public byte[] playScent() {
+        return FrameEncoder.playScent(1000, 50, scentCode);
+    }
+
+    @Benchmark
+    public byte[] playScentFromString() {
+        return FrameEncoder.playScent(1000, 50, "A1");
+    }
+
+    @Benchmark
+    public byte[] cachedPlayScent() {
+        return playFrames.get(1000, 50, "A1", false);
+    }
+
+    @Benchmark
+    public byte[] writeSettings() {
+        return FrameEncoder.writeSettings(fanSpeed++ & 0x7f, true, 30, false, 0, true);
+    }
+
+    @Benchmark
+    public byte[] pooledWriteSettings() {
+        // A new value each time, as from a slider, sent once the previous one has finished.
+        byte[] frame = settingsFrames.acquire(fanSpeed++ & 0x7f, true, 30, false, 0, true);
+        settingsFrames.release(frame);
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] packEmpty() {
+        return FrameEncoder.packEmpty(Opcodes.QUERY_STATUS);
+    }
+}
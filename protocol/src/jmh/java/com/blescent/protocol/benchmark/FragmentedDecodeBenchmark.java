@@ -0,0 +1,72 @@
+package com.blescent.protocol.benchmark;
+
+import com.blescent.protocol.Frame;
+import com.blescent.protocol.FrameDecoder;
+import com.blescent.protocol.Opcodes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a large response split into notification-sized chunks. The chunk sizes are the
+ * ATT payloads for the default MTU (23), a common negotiated MTU (185) and the LE Data
+ * Length Extension maximum (247). One operation is one complete frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentedDecodeBenchmark {
+
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    @Param({"23", "185", "247"})
+    public int mtu;
+
+    @Param({"256", "4096"})
+    public int payloadLength;
+
+    private byte[] frame;
+    private int chunkLength;
+    private FrameDecoder decoder;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        frame = Frames.response(Opcodes.QUERY_OFFLINE_ANALYTICS, payloadLength);
+        chunkLength = mtu - ATT_HEADER_LENGTH;
+        decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                FragmentedDecodeBenchmark.this.blackhole.consume(frame.getPayloadLength());
+            }
+
+            @Override
+            public void onDiscarded(int reason, int byteCount) {
+                throw new IllegalStateException("Discarded " + byteCount + " bytes, reason " + reason);
+            }
+        });
+    }
+
+    @Benchmark
+    public void decodeFragmented() {
+        for (int offset = 0; offset < frame.length; offset += chunkLength) {
+            decoder.feed(frame, offset, Math.min(chunkLength, frame.length - offset));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.blescent.protocol.benchmark;
+
+import com.blescent.protocol.FrameEncoder;
+
+import java.util.Random;
+
+/**
+ * Builds response frames the way the firmware sends them, for feeding the decoder.
+ */
+final class Frames {
+
+    private Frames() {
+    }
+
+    static byte[] response(byte opcode, int payloadLength) {
+        byte[] payload = new byte[payloadLength];
+        new Random(payloadLength).nextBytes(payload);
+        byte[] frame = FrameEncoder.pack(opcode, payload);
+        // Responses carry the firmware revision and a status byte where commands carry the
+        // program id and revision; re-balance the checksum after patching them in.
+        byte delta = (byte) ((0x26 - frame[2]) + (0 - frame[3]));
+        frame[2] = 0x26;
+        frame[3] = 0;
+        frame[frame.length - 1] -= delta;
+        return frame;
+    }
+}
@@ -0,0 +1,286 @@
+package com.blescent.protocol.benchmark;
+
+import com.blescent.protocol.Command;
+import com.blescent.protocol.CommandEngine;
+import com.blescent.protocol.CommandException;
+import com.blescent.protocol.CommandMetrics;
+import com.blescent.protocol.FrameEncoder;
+import com.blescent.protocol.HeartbeatWatchdog;
+import com.blescent.protocol.Opcodes;
+import com.blescent.protocol.PlayFrameCache;
+import com.blescent.protocol.sim.SimulatedLink;
+import com.blescent.protocol.sim.SimulatedPeripheral;
+import com.blescent.protocol.sim.VirtualScheduler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Soak test of the command engine against a {@link SimulatedPeripheral}: each scripted
+ * workload runs for a stretch of virtual time at every combination of loss rate and link
+ * latency, and the results are written as JSON so releases can be compared.
+ * <p>
+ * Latencies are in virtual milliseconds, from enqueue to completion. Throughput is given
+ * both per virtual second, which is what a user would see on such a link, and per wall-clock
+ * second, which is how fast the engine itself runs. Allocation covers the whole simulated
+ * run, peripheral included, and needs a HotSpot-compatible JVM; it is -1 elsewhere.
+ * <p>
+ * Usage: {@code SoakBenchmark [output.json] [virtual seconds per run]}; without an output file
+ * the JSON goes to standard out.
+ */
+public final class SoakBenchmark {
+    private static final double[] LOSS_RATES = {0, 0.01, 0.05, 0.1};
+    private static final long[] LATENCIES = {10, 50, 150};
+    private static final long DEFAULT_DURATION = 300;
+    private static final long WARMUP_DURATION = 30;
+    private static final long SEED = 42;
+
+    /**
+     * A scripted stream of commands an app might send.
+     */
+    enum Workload {
+        // Ten plays 50 ms apart, then a stop, every two seconds.
+        SCENT_BURST {
+            @Override
+            void step(Run run, long tick) {
+                long phase = tick % 2000;
+                if (phase < 500 && phase % 50 == 0) {
+                    run.enqueue(new Command(run.playFrames.get(10, 50 + (int) (phase / 50), SCENT_CODE, false), true));
+                } else if (phase == 500) {
+                    run.enqueue(new Command(FrameEncoder.packEmpty(Opcodes.STOP_SCENT), true));
+                }
+            }
+        },
+        // A fan speed slider dragged for a second, a settings write per frame, every three seconds.
+        SETTINGS_DRAG {
+            @Override
+            void step(Run run, long tick) {
+                long phase = tick % 3000;
+                if (phase < 1000 && phase % 16 == 0) {
+                    run.enqueue(new Command(FrameEncoder.writeSettings((int) (phase / 10), true, 30,
+                            false, 0, true), true));
+                }
+            }
+        },
+        // A status query every second, as a dashboard would send.
+        STATUS_POLLING {
+            @Override
+            void step(Run run, long tick) {
+                if (tick % 1000 == 0) {
+                    run.enqueue(new Command(FrameEncoder.packEmpty(Opcodes.QUERY_STATUS), true));
+                }
+            }
+        },
+        // A full stored track every five seconds, fragmented into many writes.
+        TRACK_WRITE {
+            @Override
+            void step(Run run, long tick) {
+                if (tick % 5000 == 0) {
+                    run.enqueue(new Command(FrameEncoder.pack(Opcodes.WRITE_TRACK, TRACK), true));
+                }
+            }
+        };
+
+        private static final String SCENT_CODE = "A1";
+        private static final byte[] TRACK = new byte[512];
+
+        // Called once per virtual millisecond.
+        abstract void step(Run run, long tick);
+    }
+
+    /**
+     * One workload at one loss rate and latency.
+     */
+    static final class Run implements CommandEngine.Listener {
+        final Workload workload;
+        final double lossRate;
+        final long latency;
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedLink link;
+        final PlayFrameCache playFrames = new PlayFrameCache();
+        // Enqueue time of every command still in the engine.
+        final Map<Command, Long> enqueued = new IdentityHashMap<>();
+        long[] latencies = new long[1024];
+        int completed;
+        int gaveUp;
+        int superseded;
+        int commands;
+
+        Run(Workload workload, double lossRate, long latency) {
+            this.workload = workload;
+            this.lossRate = lossRate;
+            this.latency = latency;
+            SimulatedPeripheral peripheral = new SimulatedPeripheral(scheduler, new Random(SEED));
+            peripheral.setLatency(latency, latency / 2);
+            peripheral.setLossRate(lossRate);
+            peripheral.setCorruptionRate(lossRate / 4);
+            peripheral.setProcessingTime(5);
+            link = new SimulatedLink(scheduler, peripheral, this, new HeartbeatWatchdog.Listener() {
+                @Override
+                public void onLinkSuspect(long silenceMillis) {
+                }
+
+                @Override
+                public void onLinkDead(long silenceMillis) {
+                }
+
+                @Override
+                public void onLinkRecovered() {
+                }
+            });
+        }
+
+        void enqueue(Command command) {
+            commands++;
+            enqueued.put(command, scheduler.now());
+            link.getEngine().enqueue(command);
+        }
+
+        void run(long seconds) {
+            link.connect();
+            long end = seconds * 1000;
+            for (long tick = 0; tick < end; tick++) {
+                workload.step(this, tick);
+                scheduler.advanceTo(tick + 1);
+            }
+            // Let what is still queued finish or give up.
+            scheduler.advanceBy(60000);
+            link.disconnect();
+        }
+
+        @Override
+        public void onCommandCompleted(Command command) {
+            Long start = enqueued.remove(command);
+            if (completed == latencies.length) {
+                latencies = Arrays.copyOf(latencies, completed * 2);
+            }
+            latencies[completed++] = scheduler.now() - start;
+        }
+
+        @Override
+        public void onCommandGaveUp(Command command, CommandException.Reason reason) {
+            enqueued.remove(command);
+            gaveUp++;
+        }
+
+        @Override
+        public void onCommandSuperseded(Command command, Command by) {
+            enqueued.remove(command);
+            superseded++;
+        }
+
+        @Override
+        public void onCommandTimedOut(Command command) {
+        }
+
+        long percentile(double percentile) {
+            if (completed == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * completed) - 1;
+            return latencies[Math.max(0, Math.min(completed - 1, index))];
+        }
+    }
+
+    private SoakBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        long duration = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_DURATION;
+        // A short pass over everything first, so the measured runs see compiled code.
+        for (Workload workload : Workload.values()) {
+            new Run(workload, LOSS_RATES[LOSS_RATES.length - 1], LATENCIES[0]).run(WARMUP_DURATION);
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"virtualSecondsPerRun\": ").append(duration).append(",\n  \"results\": [");
+        boolean first = true;
+        for (Workload workload : Workload.values()) {
+            for (double lossRate : LOSS_RATES) {
+                for (long latency : LATENCIES) {
+                    Run run = new Run(workload, lossRate, latency);
+                    long allocatedBefore = allocatedBytes();
+                    long startNanos = System.nanoTime();
+                    run.run(duration);
+                    long wallNanos = System.nanoTime() - startNanos;
+                    long allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+                    json.append(first ? "\n" : ",\n");
+                    first = false;
+                    appendResult(json, run, duration, wallNanos, allocated);
+                }
+            }
+        }
+        json.append("\n  ]\n}\n");
+        if (args.length > 0) {
+            File file = new File(args[0]);
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Can't create " + parent);
+            }
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(json.toString());
+            } finally {
+                out.close();
+            }
+        } else {
+            System.out.print(json);
+        }
+    }
+
+    private static void appendResult(StringBuilder json, Run run, long duration, long wallNanos, long allocated) {
+        Arrays.sort(run.latencies, 0, run.completed);
+        CommandMetrics.Snapshot metrics = run.link.getEngine().getMetricsSnapshot();
+        int finished = run.completed + run.gaveUp;
+        json.append("    {");
+        field(json, "workload", '"' + run.workload.name() + '"', true);
+        field(json, "lossRate", format(run.lossRate), false);
+        field(json, "latencyMillis", Long.toString(run.latency), false);
+        field(json, "commands", Integer.toString(run.commands), false);
+        field(json, "completed", Integer.toString(run.completed), false);
+        field(json, "gaveUp", Integer.toString(run.gaveUp), false);
+        field(json, "superseded", Integer.toString(run.superseded), false);
+        field(json, "commandsPerSecond", format(run.completed / (double) duration), false);
+        field(json, "commandsPerWallSecond", format(run.completed / (wallNanos / 1e9)), false);
+        field(json, "p50Millis", Long.toString(run.percentile(50)), false);
+        field(json, "p99Millis", Long.toString(run.percentile(99)), false);
+        field(json, "p999Millis", Long.toString(run.percentile(99.9)), false);
+        field(json, "retriesPerCommand",
+                format(finished == 0 ? 0 : metrics.getTotalRetries() / (double) finished), false);
+        field(json, "checksumFailures", Long.toString(metrics.getChecksumFailures()), false);
+        field(json, "allocatedBytes", Long.toString(allocated), false);
+        field(json, "allocatedBytesPerCommand",
+                allocated < 0 || run.commands == 0 ? "-1" : Long.toString(allocated / run.commands), false);
+        json.append(" }");
+    }
+
+    private static void field(StringBuilder json, String name, String value, boolean first) {
+        json.append(first ? " \"" : ", \"").append(name).append("\": ").append(value);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+            if (hotspot.isThreadAllocatedMemorySupported()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,192 @@
+package com.blescent.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only on-disk log of offline analytics, one file per device holding a short header
+ * followed by the raw {@link UsageRecord}s. {@link #append(String, List)} only returns once
+ * the records are synced to storage, so the device can safely be told to clear its copy.
+ * Per-day totals are built by one scan of the file on first use and then kept up to date by
+ * appends.
+ */
+public class AnalyticsLog {
+    private static final byte[] MAGIC = {'B', 'S', 'U', 1};
+    private static final String SUFFIX = ".usage";
+
+    private final File directory;
+    private final Map<String, TreeMap<Long, DailyUsage>> dailyUsage = new HashMap<>();
+
+    public AnalyticsLog(File directory) {
+        this.directory = directory;
+    }
+
+    private File fileFor(String address) {
+        return new File(directory, address.replace(':', '-') + SUFFIX);
+    }
+
+    /**
+     * Appends records to the device's log and waits until they are on storage.
+     */
+    public synchronized void append(String address, List<UsageRecord> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        File file = fileFor(address);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        repair(file);
+        byte[] bytes = new byte[records.size() * UsageRecord.LENGTH];
+        for (int i = 0; i < records.size(); i++) {
+            records.get(i).encode(bytes, i * UsageRecord.LENGTH);
+        }
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            if (file.length() == 0) {
+                out.write(MAGIC);
+            }
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        TreeMap<Long, DailyUsage> days = dailyUsage.get(address);
+        if (days != null) {
+            for (UsageRecord record : records) {
+                addTo(days, record);
+            }
+        }
+    }
+
+    /**
+     * Cuts off the partial record an interrupted append may have left, so later records
+     * stay aligned. Checked before every append, since one can fail partway at any time.
+     */
+    private void repair(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long length = file.length();
+        long valid = length < MAGIC.length ? 0
+                : MAGIC.length + (length - MAGIC.length) / UsageRecord.LENGTH * UsageRecord.LENGTH;
+        if (valid != length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    public synchronized List<UsageRecord> read(String address) throws IOException {
+        final List<UsageRecord> records = new ArrayList<>();
+        scan(address, new UsageRecordDecoder.Listener() {
+            @Override
+            public void onRecord(UsageRecord record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+
+    /**
+     * @return the device's totals per day, oldest first.
+     */
+    public synchronized List<DailyUsage> getDailyUsage(String address) throws IOException {
+        List<DailyUsage> result = new ArrayList<>();
+        for (DailyUsage day : loadDailyUsage(address).values()) {
+            result.add(new DailyUsage(day));
+        }
+        return result;
+    }
+
+    /**
+     * @return the addresses of every device with a log.
+     */
+    public synchronized List<String> getDevices() {
+        List<String> devices = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    devices.add(name.substring(0, name.length() - SUFFIX.length()).replace('-', ':'));
+                }
+            }
+        }
+        return devices;
+    }
+
+    public synchronized boolean delete(String address) {
+        dailyUsage.remove(address);
+        return fileFor(address).delete();
+    }
+
+    private TreeMap<Long, DailyUsage> loadDailyUsage(String address) throws IOException {
+        TreeMap<Long, DailyUsage> days = dailyUsage.get(address);
+        if (days == null) {
+            final TreeMap<Long, DailyUsage> loaded = new TreeMap<>();
+            scan(address, new UsageRecordDecoder.Listener() {
+                @Override
+                public void onRecord(UsageRecord record) {
+                    addTo(loaded, record);
+                }
+            });
+            days = loaded;
+            dailyUsage.put(address, days);
+        }
+        return days;
+    }
+
+    private static void addTo(TreeMap<Long, DailyUsage> days, UsageRecord record) {
+        DailyUsage day = days.get(record.getDay());
+        if (day == null) {
+            day = new DailyUsage(record.getDay());
+            days.put(record.getDay(), day);
+        }
+        day.add(record);
+    }
+
+    private void scan(String address, UsageRecordDecoder.Listener listener) throws IOException {
+        File file = fileFor(address);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                in.readFully(magic);
+            } catch (EOFException e) {
+                return;
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException(file + " is not a usage log");
+                }
+            }
+            // A torn last record stays pending in the decoder and is ignored.
+            UsageRecordDecoder decoder = new UsageRecordDecoder(listener);
+            byte[] buffer = new byte[UsageRecord.LENGTH * 512];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                decoder.feed(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
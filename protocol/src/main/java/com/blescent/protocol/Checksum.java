@@ -0,0 +1,27 @@
+package com.blescent.protocol;
+
+/**
+ * The frame checksum: a byte chosen so that all bytes of a frame, checksum included, add up
+ * to zero.
+ */
+public final class Checksum {
+
+    private Checksum() {
+    }
+
+    public static byte calculate(byte[] bytes, int offset, int length) {
+        byte checkSum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            checkSum += bytes[i];
+        }
+        return (byte) (~checkSum + 1);
+    }
+
+    public static boolean verify(byte[] bytes, int offset, int length) {
+        byte sum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sum += bytes[i];
+        }
+        return sum == 0;
+    }
+}
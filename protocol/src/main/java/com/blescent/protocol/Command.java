@@ -0,0 +1,131 @@
+package com.blescent.protocol;
+
+/**
+ * A frame waiting in, or being sent by, a {@link CommandEngine}.
+ */
+public class Command {
+    public static final int NO_OPCODE = -1;
+
+    /**
+     * Stopping a scent; sent before anything else that is waiting.
+     */
+    public static final int PRIORITY_URGENT = 0;
+    /**
+     * Commands that follow a user action: playing a scent, writing a track or settings.
+     */
+    public static final int PRIORITY_INTERACTIVE = 1;
+    /**
+     * Status, RFID, track and analytics queries, and clearing analytics.
+     */
+    public static final int PRIORITY_BACKGROUND = 2;
+    static final int PRIORITY_COUNT = 3;
+
+    private final byte[] frame;
+    private final int opcode;
+    private final boolean waitForResponse;
+    private final int priority;
+    long enqueueTime;
+    long sendTime;
+    // When the last chunk of the latest send went to the transport.
+    long lastWriteTime;
+    // The timeout armed for the latest send, and the delays for resends after the first.
+    long timeout;
+    ExponentialBackoff resendBackoff;
+    int retryCount;
+    private long timeToLive;
+    private CommandFuture<?> future;
+
+    public Command(byte[] frame, boolean waitForResponse) {
+        this(frame, waitForResponse, defaultPriority(frame));
+    }
+
+    public Command(byte[] frame, boolean waitForResponse, int priority) {
+        if (priority < PRIORITY_URGENT || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        this.frame = frame;
+        this.waitForResponse = waitForResponse;
+        this.opcode = opcodeOf(frame);
+        this.priority = priority;
+    }
+
+    private static int opcodeOf(byte[] frame) {
+        return frame.length >= Frame.HEADER_LENGTH && frame[0] == 'V' && frame[1] == 'C'
+                ? frame[4] : NO_OPCODE;
+    }
+
+    private static int defaultPriority(byte[] frame) {
+        int opcode = opcodeOf(frame);
+        if (isStopScent(opcode, frame)) {
+            return PRIORITY_URGENT;
+        }
+        if (Opcodes.isQuery(opcode) || opcode == Opcodes.CLEAR_OFFLINE_ANALYTICS) {
+            return PRIORITY_BACKGROUND;
+        }
+        return PRIORITY_INTERACTIVE;
+    }
+
+    private static boolean isStopScent(int opcode, byte[] frame) {
+        return opcode == Opcodes.STOP_SCENT
+                || (opcode == NO_OPCODE && frame.length == 1 && frame[0] == FrameEncoder.LEGACY_STOP_SCENT);
+    }
+
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return the opcode of a 'V','C' frame, or {@link #NO_OPCODE} for legacy frames.
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public boolean isWaitForResponse() {
+        return waitForResponse;
+    }
+
+    /**
+     * @return one of the {@code PRIORITY_} constants; lower values are sent first.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets how long the command stays worth sending while the link is down; 0 uses the
+     * engine's default. Measured from when the command was enqueued.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Attaches the future the command's sender completes from the engine's listener; the
+     * engine itself never touches it.
+     */
+    public void setFuture(CommandFuture<?> future) {
+        this.future = future;
+    }
+
+    public CommandFuture<?> getFuture() {
+        return future;
+    }
+
+    boolean isPlayScent() {
+        return opcode == Opcodes.PLAY_SCENT
+                || (opcode == NO_OPCODE && frame.length > 0 && frame[0] == FrameEncoder.LEGACY_PLAY_SCENT);
+    }
+
+    boolean isStopScent() {
+        return isStopScent(opcode, frame);
+    }
+}
@@ -0,0 +1,804 @@
+package com.blescent.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Sends queued commands one at a time. A command that doesn't wait for a response is done
+ * when its write completes; one that does is done when a valid response frame with its
+ * opcode arrives. The next command goes out as soon as the previous one is done, and each
+ * attempt arms a single timeout instead of polling for completion.
+ * <p>
+ * With a pipeline window set, commands that don't wait for a response are written as
+ * write-without-response and sent back-to-back, up to the window, each write completion
+ * freeing a slot. They never overtake an acknowledged command queued ahead of them, and an
+ * acknowledged command is only sent once every pipelined write before it has completed.
+ * <p>
+ * Frames longer than the maximum write length (ATT MTU - 3) are split into chunks, each
+ * written after the previous one's completion; a fragmented frame is never interleaved
+ * with other writes.
+ * <p>
+ * Timeouts come from an {@link RttEstimator} that learns each opcode's round trip on this
+ * link, measured from the last chunk of a send to its completion. Every chunk completion
+ * of a fragmented frame restarts the timeout, so a long frame on a slow link isn't resent
+ * for its length alone. Resends wait longer each time: twice the first timeout, doubling
+ * up to the estimator's maximum, with jitter.
+ * <p>
+ * Pending commands wait in one queue per priority ({@link Command#getPriority()}) and the
+ * next command always comes from the highest-priority queue that isn't empty. A command in
+ * flight is never interrupted, but when it times out while a higher-priority command is
+ * waiting, the higher-priority command is sent first and the resend is queued behind it.
+ * Stopping a scent drops every play command that hasn't been sent yet.
+ * <p>
+ * When the link drops but is expected back, {@link #suspend()} keeps the queue: commands in
+ * flight go back to the front and new ones are still accepted. {@link #resume()} sends them
+ * once the link is usable again. Commands older than their time to live are given up while
+ * suspended and when resuming.
+ * <p>
+ * Commands that haven't been sent yet are coalesced: a latest-wins command
+ * ({@link Opcodes#isLatestWins(int)}) replaces a pending one with the same opcode and goes to
+ * the back of its queue, and a query ({@link Opcodes#isQuery(int)}) identical to one already
+ * pending is dropped, unless a command that changes state is queued between the two.
+ * <p>
+ * In the app the engine is driven from one {@link ProtocolActor}, but its counters are read
+ * from any thread and the simulator drives it from a test thread, so methods stay
+ * synchronized. With a single caller the monitor is never contended.
+ */
+public class CommandEngine {
+
+    public interface Listener {
+        void onCommandCompleted(Command command);
+
+        /**
+         * Called when a command got no response after {@link #getMaxNumberOfRetries()} resends
+         * ({@code TIMED_OUT}), was dropped by {@link #abortAll()} ({@code ABORTED}), outlived
+         * its time to live while suspended ({@code EXPIRED}) or was pipelined and its write
+         * failed ({@code WRITE_FAILED}).
+         */
+        void onCommandGaveUp(Command command, CommandException.Reason reason);
+
+        /**
+         * Called when a pending command is dropped in favour of {@code by}, which was either
+         * already queued or has just been enqueued.
+         */
+        void onCommandSuperseded(Command command, Command by);
+
+        /**
+         * Called when the command in flight got no response in time, before it is resent or
+         * given up. Any part of its response that did arrive is stale.
+         */
+        void onCommandTimedOut(Command command);
+    }
+
+    // Timeout before any round trip has been measured, as in RFC 6298.
+    public static final int DEFAULT_WRITE_OPERATION_TIMEOUT = 1000;
+    public static final int DEFAULT_MAX_NUMBER_OF_RETRIES = 3;
+    // ATT payload of a write at the default MTU of 23.
+    public static final int DEFAULT_MAX_WRITE_LENGTH = 20;
+    public static final int DEFAULT_TIME_TO_LIVE = 10000;
+    // Delay before retrying a write the transport refused while nothing else was in flight.
+    private static final int WRITE_BUSY_RETRY_DELAY = 10;
+    // Cap on the delay before writing a chunk again after the transport reported it failed.
+    private static final int MAX_WRITE_FAILURE_DELAY = 500;
+
+    private final Transport transport;
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final Random random;
+    private final ExponentialBackoff writeFailureBackoff;
+    private final ArrayDeque<Command>[] queues = newQueues();
+    private final RttEstimator rttEstimator = new RttEstimator(DEFAULT_WRITE_OPERATION_TIMEOUT);
+    private int maxNumberOfRetries = DEFAULT_MAX_NUMBER_OF_RETRIES;
+    private boolean connected;
+    private boolean suspended;
+    private long defaultTimeToLive = DEFAULT_TIME_TO_LIVE;
+    private Scheduler.Cancellable pendingExpiry;
+    private Command current;
+    private final ArrayDeque<Command> pipelined = new ArrayDeque<>();
+    private int pipelineWindow;
+    private Scheduler.Cancellable pendingTimeout;
+    private Scheduler.Cancellable pendingWriteRetry;
+    // The transport refused the first write of the current command's send.
+    private boolean sendRefused;
+    private int maxWriteLength = DEFAULT_MAX_WRITE_LENGTH;
+    // The frame being written and how much of it has been handed to the transport.
+    private Command writing;
+    private int writeOffset;
+    private int chunkOffset;
+    private boolean writeWithResponse;
+    private long framesWritten;
+    private long fragmentedFramesWritten;
+    private long chunksWritten;
+    private long bytesWritten;
+    private boolean coalescing = true;
+    private long commandsCoalesced;
+    private final CommandMetrics metrics = new CommandMetrics();
+
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable retryWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CommandEngine.this) {
+                pendingWriteRetry = null;
+                if (isWritingFragments()) {
+                    continueWrite();
+                } else if (sendRefused) {
+                    sendRefused = false;
+                    current.sendTime = scheduler.now();
+                    writeCurrent();
+                } else {
+                    runQueueIfNecessary();
+                }
+            }
+        }
+    };
+
+    private final Runnable expiryTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CommandEngine.this) {
+                pendingExpiry = null;
+                giveUpExpired();
+                scheduleExpiry();
+            }
+        }
+    };
+
+    public CommandEngine(Transport transport, Scheduler scheduler, Listener listener) {
+        this(transport, scheduler, listener, new Random());
+    }
+
+    /**
+     * @param random the source of resend jitter, for reproducible simulations.
+     */
+    public CommandEngine(Transport transport, Scheduler scheduler, Listener listener, Random random) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.random = random;
+        writeFailureBackoff = new ExponentialBackoff(WRITE_BUSY_RETRY_DELAY, MAX_WRITE_FAILURE_DELAY, random);
+    }
+
+    private static ArrayDeque<Command>[] newQueues() {
+        // Java can't create an array of a generic type; every element is an ArrayDeque<Command>.
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<Command>[] queues = new ArrayDeque[Command.PRIORITY_COUNT];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        return queues;
+    }
+
+    /**
+     * Sets the timeout of opcodes whose round trip hasn't been measured yet.
+     */
+    public synchronized void setWriteOperationTimeout(int writeOperationTimeout) {
+        rttEstimator.setInitialTimeout(writeOperationTimeout);
+    }
+
+    /**
+     * Sets the range learned timeouts are clamped to; the maximum also caps resend backoff.
+     */
+    public synchronized void setTimeoutBounds(int minTimeout, int maxTimeout) {
+        rttEstimator.setTimeoutBounds(minTimeout, maxTimeout);
+    }
+
+    /**
+     * Sets the time to live of commands that don't set their own.
+     */
+    public synchronized void setDefaultTimeToLive(long defaultTimeToLive) {
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
+    public synchronized int getMaxNumberOfRetries() {
+        return maxNumberOfRetries;
+    }
+
+    public synchronized void setMaxNumberOfRetries(int maxNumberOfRetries) {
+        this.maxNumberOfRetries = maxNumberOfRetries;
+    }
+
+    /**
+     * Sets how many unacknowledged commands may be in flight at once; 0 (the default) sends
+     * them one at a time as ordinary writes.
+     */
+    public synchronized void setPipelineWindow(int pipelineWindow) {
+        this.pipelineWindow = pipelineWindow;
+        runQueueIfNecessary();
+    }
+
+    public synchronized int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
+    /**
+     * Sets the largest number of bytes sent in a single write, normally the negotiated ATT
+     * MTU minus 3.
+     */
+    public synchronized void setMaxWriteLength(int maxWriteLength) {
+        this.maxWriteLength = Math.max(1, maxWriteLength);
+    }
+
+    public synchronized int getMaxWriteLength() {
+        return maxWriteLength;
+    }
+
+    public synchronized long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * @return how many frames had to be split over more than one write.
+     */
+    public synchronized long getFragmentedFramesWritten() {
+        return fragmentedFramesWritten;
+    }
+
+    public synchronized long getChunksWritten() {
+        return chunksWritten;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Turns coalescing of pending commands on (the default) or off.
+     */
+    public synchronized void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    public synchronized boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * @return how many commands were dropped in favour of another before being sent.
+     */
+    public synchronized long getCommandsCoalesced() {
+        return commandsCoalesced;
+    }
+
+    /**
+     * @return the live metrics, for recording events the engine doesn't see (heartbeats,
+     * checksum failures) and resetting.
+     */
+    public CommandMetrics getMetrics() {
+        return metrics;
+    }
+
+    public synchronized CommandMetrics.Snapshot getMetricsSnapshot() {
+        return metrics.snapshot(getQueueDepth(), rttEstimator);
+    }
+
+    public synchronized int getInFlightCount() {
+        return pipelined.size() + (current == null ? 0 : 1);
+    }
+
+    /**
+     * Commands are only accepted while connected or suspended; a change in either direction
+     * gives up everything that is queued.
+     */
+    public synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+        suspended = false;
+        cancelExpiry();
+        abortAll();
+    }
+
+    /**
+     * Stops sending because the link dropped, keeping the queue for {@link #resume()}.
+     * Commands in flight go back to the front of their queues to be sent again.
+     */
+    public synchronized void suspend() {
+        connected = false;
+        suspended = true;
+        cancelTimeout();
+        cancelWriteRetry();
+        sendRefused = false;
+        writing = null;
+        if (current != null) {
+            queues[current.getPriority()].addFirst(current);
+            current = null;
+        }
+        while (!pipelined.isEmpty()) {
+            Command command = pipelined.removeLast();
+            queues[command.getPriority()].addFirst(command);
+        }
+        giveUpExpired();
+        scheduleExpiry();
+    }
+
+    /**
+     * Starts sending again after {@link #suspend()}.
+     */
+    public synchronized void resume() {
+        if (!suspended) {
+            return;
+        }
+        suspended = false;
+        connected = true;
+        cancelExpiry();
+        giveUpExpired();
+        runQueueIfNecessary();
+    }
+
+    public synchronized boolean isSuspended() {
+        return suspended;
+    }
+
+    private long expiryTime(Command command) {
+        long timeToLive = command.getTimeToLive() > 0 ? command.getTimeToLive() : defaultTimeToLive;
+        return command.enqueueTime + timeToLive;
+    }
+
+    private void giveUpExpired() {
+        long now = scheduler.now();
+        for (ArrayDeque<Command> queue : queues) {
+            Iterator<Command> it = queue.iterator();
+            while (it.hasNext()) {
+                Command command = it.next();
+                if (now >= expiryTime(command)) {
+                    it.remove();
+                    giveUp(command, CommandException.Reason.EXPIRED);
+                }
+            }
+        }
+    }
+
+    private void scheduleExpiry() {
+        if (!suspended || pendingExpiry != null) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        for (ArrayDeque<Command> queue : queues) {
+            for (Command command : queue) {
+                next = Math.min(next, expiryTime(command));
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            pendingExpiry = scheduler.schedule(expiryTask, Math.max(0, next - scheduler.now()));
+        }
+    }
+
+    private void cancelExpiry() {
+        if (pendingExpiry != null) {
+            pendingExpiry.cancel();
+            pendingExpiry = null;
+        }
+    }
+
+    /**
+     * Gives up on every command, in flight or pending, without waiting for their timeouts;
+     * used when the link is known to be gone. Commands enqueued afterwards are sent as usual.
+     */
+    public synchronized void abortAll() {
+        cancelTimeout();
+        cancelWriteRetry();
+        sendRefused = false;
+        writing = null;
+        while (!pipelined.isEmpty()) {
+            giveUp(pipelined.remove(), CommandException.Reason.ABORTED);
+        }
+        if (current != null) {
+            Command command = current;
+            current = null;
+            giveUp(command, CommandException.Reason.ABORTED);
+        }
+        for (ArrayDeque<Command> queue : queues) {
+            while (!queue.isEmpty()) {
+                giveUp(queue.remove(), CommandException.Reason.ABORTED);
+            }
+        }
+    }
+
+    private void giveUp(Command command, CommandException.Reason reason) {
+        metrics.recordGaveUp(command.getOpcode());
+        listener.onCommandGaveUp(command, reason);
+    }
+
+    public synchronized boolean enqueue(Command command) {
+        if (!connected && !suspended) {
+            return false;
+        }
+        command.enqueueTime = scheduler.now();
+        command.retryCount = 0;
+        command.resendBackoff = null;
+        if (command.isStopScent()) {
+            dropPendingPlays(command);
+        }
+        if (coalescing && coalesce(command)) {
+            return true;
+        }
+        queues[command.getPriority()].add(command);
+        metrics.recordQueueDepth(getQueueDepth());
+        scheduleExpiry();
+        runQueueIfNecessary();
+        return true;
+    }
+
+    /**
+     * @return true if {@code command} was merged into a pending command and must not be
+     * queued.
+     */
+    private boolean coalesce(Command command) {
+        int opcode = command.getOpcode();
+        if (Opcodes.isLatestWins(opcode)) {
+            for (ArrayDeque<Command> queue : queues) {
+                Iterator<Command> it = queue.iterator();
+                while (it.hasNext()) {
+                    Command pending = it.next();
+                    if (pending.getOpcode() == opcode) {
+                        it.remove();
+                        commandsCoalesced++;
+                        supersede(pending, command);
+                        // There is never more than one pending command per latest-wins opcode.
+                        return false;
+                    }
+                }
+            }
+        } else if (Opcodes.isQuery(opcode)) {
+            // Queries only run after everything queued at a higher priority, so only state
+            // changes in their own queue matter.
+            Iterator<Command> it = queues[command.getPriority()].descendingIterator();
+            while (it.hasNext()) {
+                Command pending = it.next();
+                if (pending.getOpcode() == opcode && Arrays.equals(pending.getFrame(), command.getFrame())) {
+                    commandsCoalesced++;
+                    supersede(command, pending);
+                    return true;
+                }
+                if (!Opcodes.isQuery(pending.getOpcode())) {
+                    // The state may change before the pending query is answered.
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isAwaitingResponse() {
+        return current != null && current.isWaitForResponse();
+    }
+
+    public synchronized int getQueueDepth() {
+        int depth = getInFlightCount();
+        for (ArrayDeque<Command> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return how many commands of the given priority are waiting to be sent.
+     */
+    public synchronized int getPendingCount(int priority) {
+        return queues[priority].size();
+    }
+
+    private void dropPendingPlays(Command stop) {
+        for (ArrayDeque<Command> queue : queues) {
+            Iterator<Command> it = queue.iterator();
+            while (it.hasNext()) {
+                Command pending = it.next();
+                if (pending.isPlayScent()) {
+                    it.remove();
+                    supersede(pending, stop);
+                }
+            }
+        }
+    }
+
+    private void supersede(Command command, Command by) {
+        metrics.recordSuperseded(command.getOpcode());
+        listener.onCommandSuperseded(command, by);
+    }
+
+    private ArrayDeque<Command> nextQueue() {
+        for (ArrayDeque<Command> queue : queues) {
+            if (!queue.isEmpty()) {
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasPendingAbove(int priority) {
+        for (int i = 0; i < priority; i++) {
+            if (!queues[i].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by the transport when a write finished, successfully or not.
+     */
+    public synchronized void onWriteComplete(boolean success) {
+        if (!success) {
+            onWriteFailed();
+            return;
+        }
+        writeFailureBackoff.reset();
+        if (writing != null) {
+            if (isWritingFragments()) {
+                // The frame is getting through; time out on silence, not on its length.
+                if (pendingTimeout != null) {
+                    armTimeout(writing.timeout);
+                }
+                continueWrite();
+                return;
+            }
+            writing = null;
+        }
+        if (!pipelined.isEmpty()) {
+            Command command = pipelined.remove();
+            long now = scheduler.now();
+            metrics.recordCompleted(command.getOpcode(), now - command.sendTime);
+            rttEstimator.onSample(command.getOpcode(), now - command.lastWriteTime);
+            cancelTimeout();
+            if (!pipelined.isEmpty()) {
+                armTimeout(pipelined.element().timeout);
+            }
+            listener.onCommandCompleted(command);
+            runQueueIfNecessary();
+        } else if (current != null && !current.isWaitForResponse()) {
+            complete();
+        }
+    }
+
+    /**
+     * A write the transport accepted didn't go through, so nothing completes and no round
+     * trip is sampled. When no later write is in flight the chunk is written again after a
+     * backoff delay; the command's timeout keeps running meanwhile, so a link that keeps
+     * failing writes ends in the usual resends. A pipelined frame with writes behind it
+     * can't be repeated in order and is given up.
+     */
+    private void onWriteFailed() {
+        if (writing != null && (writing == current || pipelined.size() == 1 && pipelined.element() == writing)) {
+            writeOffset = chunkOffset;
+            scheduleWriteRetry(writeFailureBackoff.nextDelay());
+        } else if (!pipelined.isEmpty()) {
+            Command command = pipelined.remove();
+            if (writing == command) {
+                writing = null;
+            }
+            cancelTimeout();
+            if (!pipelined.isEmpty()) {
+                armTimeout(pipelined.element().timeout);
+            }
+            giveUp(command, CommandException.Reason.WRITE_FAILED);
+            runQueueIfNecessary();
+        }
+    }
+
+    /**
+     * Called with every valid response frame.
+     */
+    public synchronized void onResponse(Frame frame) {
+        if (current == null || !current.isWaitForResponse()) {
+            return;
+        }
+        if (current.getOpcode() != Command.NO_OPCODE && current.getOpcode() != frame.getOpcode()) {
+            return;
+        }
+        complete();
+    }
+
+    private void runQueueIfNecessary() {
+        while (current == null && connected) {
+            ArrayDeque<Command> queue = nextQueue();
+            if (queue == null) {
+                return;
+            }
+            Command next = queue.element();
+            if (pipelineWindow > 0 && !next.isWaitForResponse()) {
+                if (pipelined.size() >= pipelineWindow || isWritingFragments()) {
+                    return;
+                }
+                queue.remove();
+                if (!sendPipelined(next)) {
+                    queue.addFirst(next);
+                    return;
+                }
+            } else {
+                if (!pipelined.isEmpty()) {
+                    return;
+                }
+                current = queue.remove();
+                send();
+            }
+        }
+    }
+
+    private boolean sendPipelined(Command command) {
+        if (command.getFrame().length > maxWriteLength && !pipelined.isEmpty()) {
+            // Fragmented frames go out on their own; wait for the writes in flight.
+            return false;
+        }
+        command.sendTime = scheduler.now();
+        command.timeout = rttEstimator.getTimeout(command.getOpcode());
+        pipelined.add(command);
+        if (pipelined.size() == 1) {
+            armTimeout(command.timeout);
+        }
+        if (!startWrite(command, false)) {
+            pipelined.removeLastOccurrence(command);
+            // The stack is busy; the next write completion picks this command up again.
+            if (pipelined.isEmpty()) {
+                cancelTimeout();
+                scheduleWriteRetry();
+            }
+            return false;
+        }
+        // A refused command is offered again later; only the accepted write ends its wait.
+        metrics.recordQueueWait(command.sendTime - command.enqueueTime);
+        return true;
+    }
+
+    private void send() {
+        Command command = current;
+        command.sendTime = scheduler.now();
+        if (command.retryCount == 0) {
+            metrics.recordQueueWait(command.sendTime - command.enqueueTime);
+            command.timeout = rttEstimator.getTimeout(command.getOpcode());
+        } else {
+            command.timeout = command.resendBackoff.nextDelay();
+        }
+        writeCurrent();
+    }
+
+    private void writeCurrent() {
+        armTimeout(current.timeout);
+        if (!startWrite(current, true)) {
+            // The stack is busy. Nothing went out, so this is neither a resend nor a timeout;
+            // the timeout starts again once the write is accepted.
+            cancelTimeout();
+            sendRefused = true;
+            scheduleWriteRetry();
+        }
+    }
+
+    private boolean startWrite(Command command, boolean withResponse) {
+        cancelWriteRetry();
+        writing = command;
+        writeOffset = 0;
+        writeWithResponse = withResponse;
+        if (!writeNextChunk()) {
+            writing = null;
+            return false;
+        }
+        // Counted once the first chunk is accepted, so a refused write isn't counted twice.
+        framesWritten++;
+        if (command.getFrame().length > maxWriteLength) {
+            fragmentedFramesWritten++;
+        }
+        return true;
+    }
+
+    private boolean writeNextChunk() {
+        byte[] frame = writing.getFrame();
+        int offset = writeOffset;
+        int length = Math.min(maxWriteLength, frame.length - offset);
+        // Advance first: a transport may report completion before write() returns.
+        chunkOffset = offset;
+        writeOffset = offset + length;
+        writing.lastWriteTime = scheduler.now();
+        chunksWritten++;
+        bytesWritten += length;
+        if (!transport.write(frame, offset, length, writeWithResponse)) {
+            writeOffset = offset;
+            chunksWritten--;
+            bytesWritten -= length;
+            return false;
+        }
+        return true;
+    }
+
+    private void continueWrite() {
+        if (!writeNextChunk()) {
+            scheduleWriteRetry();
+        }
+    }
+
+    private void scheduleWriteRetry() {
+        scheduleWriteRetry(WRITE_BUSY_RETRY_DELAY);
+    }
+
+    private void scheduleWriteRetry(long delay) {
+        if (pendingWriteRetry == null) {
+            pendingWriteRetry = scheduler.schedule(retryWriteTask, delay);
+        }
+    }
+
+    private boolean isWritingFragments() {
+        return writing != null && writeOffset < writing.getFrame().length;
+    }
+
+    private synchronized void onTimeout() {
+        pendingTimeout = null;
+        if (!pipelined.isEmpty()) {
+            // Write completions stopped arriving; unacknowledged frames aren't resent.
+            rttEstimator.onTimeout(pipelined.element().getOpcode());
+            writing = null;
+            while (!pipelined.isEmpty()) {
+                giveUp(pipelined.remove(), CommandException.Reason.TIMED_OUT);
+            }
+            runQueueIfNecessary();
+            return;
+        }
+        Command command = current;
+        if (command == null) {
+            return;
+        }
+        listener.onCommandTimedOut(command);
+        if (command.retryCount == 0) {
+            rttEstimator.onTimeout(command.getOpcode());
+        }
+        command.retryCount++;
+        if (command.retryCount > maxNumberOfRetries) {
+            current = null;
+            giveUp(command, CommandException.Reason.TIMED_OUT);
+            runQueueIfNecessary();
+            return;
+        }
+        metrics.recordRetry(command.getOpcode());
+        if (command.resendBackoff == null) {
+            long maxTimeout = rttEstimator.getMaxTimeout();
+            command.resendBackoff = new ExponentialBackoff(Math.min(2 * command.timeout, maxTimeout), maxTimeout, random);
+        }
+        if (hasPendingAbove(command.getPriority())) {
+            // Let the more urgent command go first; the resend waits at the head of its queue.
+            current = null;
+            writing = null;
+            queues[command.getPriority()].addFirst(command);
+            runQueueIfNecessary();
+        } else {
+            send();
+        }
+    }
+
+    private void complete() {
+        Command command = current;
+        long now = scheduler.now();
+        metrics.recordCompleted(command.getOpcode(), now - command.sendTime);
+        if (command.retryCount == 0) {
+            rttEstimator.onSample(command.getOpcode(), now - command.lastWriteTime);
+        } else {
+            rttEstimator.onCompletedAfterResend(command.getOpcode());
+        }
+        cancelTimeout();
+        current = null;
+        listener.onCommandCompleted(command);
+        runQueueIfNecessary();
+    }
+
+    private void armTimeout(long timeout) {
+        cancelTimeout();
+        pendingTimeout = scheduler.schedule(timeoutTask, timeout);
+    }
+
+    private void cancelTimeout() {
+        if (pendingTimeout != null) {
+            pendingTimeout.cancel();
+            pendingTimeout = null;
+        }
+    }
+
+    private void cancelWriteRetry() {
+        if (pendingWriteRetry != null) {
+            pendingWriteRetry.cancel();
+            pendingWriteRetry = null;
+        }
+    }
+}
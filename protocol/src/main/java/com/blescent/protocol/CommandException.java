@@ -0,0 +1,67 @@
+package com.blescent.protocol;
+
+/**
+ * Why a command could not be carried out.
+ */
+public class CommandException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        /**
+         * There is no connection to send it over.
+         */
+        NOT_CONNECTED,
+        /**
+         * Connected, but the peripheral's services haven't been discovered yet.
+         */
+        NOT_READY,
+        /**
+         * The peripheral's firmware doesn't have the command.
+         */
+        UNSUPPORTED,
+        /**
+         * The command's arguments are out of range, e.g. a track that is too long.
+         */
+        INVALID_ARGUMENT,
+        /**
+         * No valid response after every resend.
+         */
+        TIMED_OUT,
+        /**
+         * The write of a pipelined command failed and couldn't be repeated in order.
+         */
+        WRITE_FAILED,
+        /**
+         * The link was lost while the command was pending or in flight.
+         */
+        ABORTED,
+        /**
+         * The link stayed down for longer than the command's time to live.
+         */
+        EXPIRED,
+        /**
+         * Dropped unsent because a later command made it pointless.
+         */
+        SUPERSEDED,
+        /**
+         * The response arrived but its payload doesn't have the expected shape.
+         */
+        MALFORMED_RESPONSE,
+        /**
+         * The reply couldn't be written to local storage.
+         */
+        STORAGE_FAILED
+    }
+
+    private final Reason reason;
+
+    public CommandException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
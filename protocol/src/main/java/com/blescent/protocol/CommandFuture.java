@@ -0,0 +1,185 @@
+package com.blescent.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The eventual outcome of one command: its decoded reply, or the {@link CommandException}
+ * saying why there won't be one. Completes exactly once.
+ * <p>
+ * Callbacks run on the thread that completes the future, which for commands sent by the
+ * library is the protocol thread, or straight away on the calling thread if it is already
+ * done. They should return quickly. {@link #then(Continuation)} chains a command onto the
+ * reply of another, so a sequence such as write, read back, play needs no shared state.
+ *
+ * @param <T> the type of the reply; {@link Void} for commands that are only acknowledged.
+ */
+public class CommandFuture<T> {
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(CommandException error);
+    }
+
+    /**
+     * Starts the next step of a chain once the previous one has succeeded.
+     */
+    public interface Continuation<T, U> {
+        CommandFuture<U> then(T result);
+    }
+
+    private T result;
+    private CommandException error;
+    private boolean done;
+    private List<Callback<? super T>> callbacks;
+
+    public static <T> CommandFuture<T> succeeded(T result) {
+        CommandFuture<T> future = new CommandFuture<>();
+        future.set(result);
+        return future;
+    }
+
+    public static <T> CommandFuture<T> failed(CommandException error) {
+        CommandFuture<T> future = new CommandFuture<>();
+        future.setException(error);
+        return future;
+    }
+
+    /**
+     * Completes the future with a reply.
+     *
+     * @return false if it was already complete, in which case nothing changes.
+     */
+    public boolean set(T result) {
+        List<Callback<? super T>> toRun;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            done = true;
+            toRun = takeCallbacks();
+        }
+        for (Callback<? super T> callback : toRun) {
+            callback.onSuccess(result);
+        }
+        return true;
+    }
+
+    /**
+     * Completes the future with a failure.
+     *
+     * @return false if it was already complete, in which case nothing changes.
+     */
+    public boolean setException(CommandException error) {
+        List<Callback<? super T>> toRun;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.error = error;
+            done = true;
+            toRun = takeCallbacks();
+        }
+        for (Callback<? super T> callback : toRun) {
+            callback.onFailure(error);
+        }
+        return true;
+    }
+
+    private List<Callback<? super T>> takeCallbacks() {
+        List<Callback<? super T>> toRun = callbacks;
+        callbacks = null;
+        notifyAll();
+        return toRun == null ? new ArrayList<Callback<? super T>>(0) : toRun;
+    }
+
+    /**
+     * Completes this future the same way as {@code other} completes.
+     */
+    public void setFrom(CommandFuture<? extends T> other) {
+        other.addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                set(result);
+            }
+
+            @Override
+            public void onFailure(CommandException error) {
+                setException(error);
+            }
+        });
+    }
+
+    public CommandFuture<T> addCallback(Callback<? super T> callback) {
+        T result;
+        CommandException error;
+        synchronized (this) {
+            if (!done) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<>(1);
+                }
+                callbacks.add(callback);
+                return this;
+            }
+            result = this.result;
+            error = this.error;
+        }
+        if (error != null) {
+            callback.onFailure(error);
+        } else {
+            callback.onSuccess(result);
+        }
+        return this;
+    }
+
+    /**
+     * @return a future for the command {@code continuation} starts once this one succeeds;
+     * if this one fails, the returned future fails with the same exception and
+     * {@code continuation} isn't called.
+     */
+    public <U> CommandFuture<U> then(final Continuation<? super T, U> continuation) {
+        final CommandFuture<U> next = new CommandFuture<>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                next.setFrom(continuation.then(result));
+            }
+
+            @Override
+            public void onFailure(CommandException error) {
+                next.setException(error);
+            }
+        });
+        return next;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for the outcome. Must not be called on the thread that completes the future.
+     *
+     * @throws CommandException  if the command failed.
+     * @throws TimeoutException if it didn't complete within {@code timeout}.
+     */
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws CommandException, InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,273 @@
+package com.blescent.protocol;
+
+/**
+ * Counters and latency histograms for one link, updated by its {@link CommandEngine} and by
+ * whoever feeds it response data. Updates are cheap and allocation free;
+ * {@link #snapshot(int, RttEstimator)} copies everything into an immutable {@link Snapshot}.
+ * <p>
+ * Per-opcode figures are indexed by opcode; legacy frames and unknown opcodes share the
+ * {@link Command#NO_OPCODE} slot.
+ */
+public final class CommandMetrics {
+    static final int SLOTS = Opcodes.COUNT + 1;
+    // Weight of the newest interval in the heartbeat interval average.
+    private static final double HEARTBEAT_EWMA_WEIGHT = 0.125;
+
+    private final LatencyHistogram[] roundTrip = newHistograms();
+    private final long[] completed = new long[SLOTS];
+    private final long[] retries = new long[SLOTS];
+    private final long[] gaveUp = new long[SLOTS];
+    private final long[] superseded = new long[SLOTS];
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private int maxQueueDepth;
+    private long checksumFailures;
+    private long discardedBytes;
+    private long heartbeats;
+    private long trackCacheHits;
+    private long trackCacheMisses;
+    private long lastHeartbeatTime = -1;
+    private double heartbeatInterval;
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    static int slot(int opcode) {
+        return opcode >= 0 && opcode < Opcodes.COUNT ? opcode + 1 : 0;
+    }
+
+    synchronized void recordQueueDepth(int depth) {
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+    }
+
+    /**
+     * Records the time a command spent queued before its first send.
+     */
+    synchronized void recordQueueWait(long millis) {
+        queueWait.record(millis);
+    }
+
+    /**
+     * Records a command finishing: for a command that waits for a response, the time from
+     * its last send to the valid response; otherwise the time its write took.
+     */
+    synchronized void recordCompleted(int opcode, long roundTripMillis) {
+        int slot = slot(opcode);
+        completed[slot]++;
+        roundTrip[slot].record(roundTripMillis);
+    }
+
+    synchronized void recordRetry(int opcode) {
+        retries[slot(opcode)]++;
+    }
+
+    synchronized void recordGaveUp(int opcode) {
+        gaveUp[slot(opcode)]++;
+    }
+
+    synchronized void recordSuperseded(int opcode) {
+        superseded[slot(opcode)]++;
+    }
+
+    /**
+     * Records a response frame that was dropped because its checksum didn't match.
+     */
+    public synchronized void recordChecksumFailure() {
+        checksumFailures++;
+    }
+
+    /**
+     * Records bytes the response decoder threw away for any reason.
+     */
+    public synchronized void recordDiscardedBytes(int byteCount) {
+        discardedBytes += byteCount;
+    }
+
+    /**
+     * Records a track write that was skipped because the device already held the track.
+     */
+    public synchronized void recordTrackCacheHit() {
+        trackCacheHits++;
+    }
+
+    /**
+     * Records a track write that had to go out.
+     */
+    public synchronized void recordTrackCacheMiss() {
+        trackCacheMisses++;
+    }
+
+    public synchronized void recordHeartbeat(long now) {
+        heartbeats++;
+        if (lastHeartbeatTime >= 0) {
+            long interval = now - lastHeartbeatTime;
+            heartbeatInterval = heartbeatInterval == 0 ? interval
+                    : heartbeatInterval + HEARTBEAT_EWMA_WEIGHT * (interval - heartbeatInterval);
+        }
+        lastHeartbeatTime = now;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < SLOTS; i++) {
+            roundTrip[i].clear();
+            completed[i] = 0;
+            retries[i] = 0;
+            gaveUp[i] = 0;
+            superseded[i] = 0;
+        }
+        queueWait.clear();
+        maxQueueDepth = 0;
+        checksumFailures = 0;
+        discardedBytes = 0;
+        heartbeats = 0;
+        trackCacheHits = 0;
+        trackCacheMisses = 0;
+        lastHeartbeatTime = -1;
+        heartbeatInterval = 0;
+    }
+
+    /**
+     * @param queueDepth the current queue depth, which the metrics don't track themselves.
+     * @param rtt        the link's round-trip estimator, whose state is copied as well.
+     */
+    public synchronized Snapshot snapshot(int queueDepth, RttEstimator rtt) {
+        return new Snapshot(this, queueDepth, rtt);
+    }
+
+    /**
+     * An immutable copy of the metrics at one point in time.
+     */
+    public static final class Snapshot {
+        private final LatencyHistogram[] roundTrip = new LatencyHistogram[SLOTS];
+        private final RttEstimator.Estimate[] estimates = new RttEstimator.Estimate[SLOTS];
+        private final long[] completed;
+        private final long[] retries;
+        private final long[] gaveUp;
+        private final long[] superseded;
+        private final LatencyHistogram queueWait;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final long checksumFailures;
+        private final long discardedBytes;
+        private final long heartbeats;
+        private final double heartbeatInterval;
+        private final long trackCacheHits;
+        private final long trackCacheMisses;
+
+        private Snapshot(CommandMetrics metrics, int queueDepth, RttEstimator rtt) {
+            for (int i = 0; i < SLOTS; i++) {
+                roundTrip[i] = metrics.roundTrip[i].copy();
+                estimates[i] = rtt.estimate(i);
+            }
+            completed = metrics.completed.clone();
+            retries = metrics.retries.clone();
+            gaveUp = metrics.gaveUp.clone();
+            superseded = metrics.superseded.clone();
+            queueWait = metrics.queueWait.copy();
+            this.queueDepth = queueDepth;
+            maxQueueDepth = metrics.maxQueueDepth;
+            checksumFailures = metrics.checksumFailures;
+            discardedBytes = metrics.discardedBytes;
+            heartbeats = metrics.heartbeats;
+            heartbeatInterval = metrics.heartbeatInterval;
+            trackCacheHits = metrics.trackCacheHits;
+            trackCacheMisses = metrics.trackCacheMisses;
+        }
+
+        public LatencyHistogram getRoundTrip(int opcode) {
+            return roundTrip[slot(opcode)];
+        }
+
+        /**
+         * @return the round-trip estimate that timeouts for this opcode are based on.
+         */
+        public RttEstimator.Estimate getRoundTripEstimate(int opcode) {
+            return estimates[slot(opcode)];
+        }
+
+        public long getCompleted(int opcode) {
+            return completed[slot(opcode)];
+        }
+
+        /**
+         * @return how many times commands with this opcode were resent after a timeout.
+         */
+        public long getRetries(int opcode) {
+            return retries[slot(opcode)];
+        }
+
+        public long getGaveUp(int opcode) {
+            return gaveUp[slot(opcode)];
+        }
+
+        /**
+         * @return how many commands with this opcode were coalesced or dropped by a stop
+         * before being sent.
+         */
+        public long getSuperseded(int opcode) {
+            return superseded[slot(opcode)];
+        }
+
+        public long getTotalRetries() {
+            return sum(retries);
+        }
+
+        public long getTotalGaveUp() {
+            return sum(gaveUp);
+        }
+
+        public LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public long getChecksumFailures() {
+            return checksumFailures;
+        }
+
+        public long getDiscardedBytes() {
+            return discardedBytes;
+        }
+
+        public long getHeartbeats() {
+            return heartbeats;
+        }
+
+        /**
+         * @return heartbeats per minute from the moving average of the interval between
+         * them, or 0 before the second heartbeat.
+         */
+        public double getHeartbeatsPerMinute() {
+            return heartbeatInterval <= 0 ? 0 : 60000 / heartbeatInterval;
+        }
+
+        public long getTrackCacheHits() {
+            return trackCacheHits;
+        }
+
+        public long getTrackCacheMisses() {
+            return trackCacheMisses;
+        }
+
+        private static long sum(long[] values) {
+            long total = 0;
+            for (long value : values) {
+                total += value;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.blescent.protocol;
+
+/**
+ * Totals of the usage records of one device on one UTC day.
+ */
+public final class DailyUsage {
+    private final long day;
+    private int playCount;
+    private long totalDuration;
+
+    DailyUsage(long day) {
+        this.day = day;
+    }
+
+    DailyUsage(DailyUsage other) {
+        day = other.day;
+        playCount = other.playCount;
+        totalDuration = other.totalDuration;
+    }
+
+    void add(UsageRecord record) {
+        playCount++;
+        totalDuration += record.getDuration();
+    }
+
+    /**
+     * @return days since the Unix epoch.
+     */
+    public long getDay() {
+        return day;
+    }
+
+    public int getPlayCount() {
+        return playCount;
+    }
+
+    /**
+     * @return the total play time in seconds.
+     */
+    public long getTotalDuration() {
+        return totalDuration;
+    }
+}
@@ -0,0 +1,52 @@
+package com.blescent.protocol;
+
+/**
+ * Decoded payload of a status (opcode 2) reply.
+ */
+public final class DeviceStatus {
+    private static final int PAYLOAD_LENGTH = 3;
+
+    private final int batteryLevel;
+    private final byte state;
+    private final byte hasOfflineAnalytics;
+
+    DeviceStatus(int batteryLevel, byte state, byte hasOfflineAnalytics) {
+        this.batteryLevel = batteryLevel;
+        this.state = state;
+        this.hasOfflineAnalytics = hasOfflineAnalytics;
+    }
+
+    /**
+     * @return the decoded status, or null if the payload is too short.
+     */
+    public static DeviceStatus decode(Frame frame) {
+        if (frame.getPayloadLength() < PAYLOAD_LENGTH) {
+            return null;
+        }
+        return new DeviceStatus(batteryPercentage(frame.getPayloadByte(0) & 0xff),
+                frame.getPayloadByte(1), frame.getPayloadByte(2));
+    }
+
+    /**
+     * Maps the raw battery reading (0xAA..0xC8) onto a percentage clamped to 2..100.
+     */
+    public static int batteryPercentage(int value) {
+        int fFromStart = 0xAA, fFromEnd = 0xC8, fToStart = 10, fToEnd = 100;
+        int percentage = fToStart + ((fToEnd - fToStart) * (value - fFromStart) / (fFromEnd - fFromStart));
+        percentage = percentage > 2 ? percentage : 2;
+        percentage = percentage < 100 ? percentage : 100;
+        return percentage;
+    }
+
+    public int getBatteryLevel() {
+        return batteryLevel;
+    }
+
+    public byte getState() {
+        return state;
+    }
+
+    public byte getHasOfflineAnalytics() {
+        return hasOfflineAnalytics;
+    }
+}
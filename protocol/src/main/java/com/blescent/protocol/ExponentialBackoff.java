@@ -0,0 +1,57 @@
+package com.blescent.protocol;
+
+import java.util.Random;
+
+/**
+ * Delays that double with every attempt up to a cap, with "equal jitter": each delay is
+ * somewhere between half and all of the current step, so devices that lost their link at
+ * the same moment don't retry in lockstep.
+ */
+public class ExponentialBackoff {
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random;
+    private int attempt;
+
+    public ExponentialBackoff(long initialDelay, long maxDelay) {
+        this(initialDelay, maxDelay, new Random());
+    }
+
+    public ExponentialBackoff(long initialDelay, long maxDelay, Random random) {
+        if (initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid delays " + initialDelay + ", " + maxDelay);
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * @return the delay before the next attempt, and counts that attempt.
+     */
+    public long nextDelay() {
+        long step = getStep(attempt);
+        attempt++;
+        long half = step / 2;
+        return half + (long) (random.nextDouble() * (step - half));
+    }
+
+    private long getStep(int attempt) {
+        // Beyond this many doublings the shift would overflow; the cap is reached long before.
+        if (attempt >= Long.numberOfLeadingZeros(initialDelay) - 1) {
+            return maxDelay;
+        }
+        return Math.min(maxDelay, initialDelay << attempt);
+    }
+
+    /**
+     * @return how many delays have been handed out since the last {@link #reset()}.
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public void reset() {
+        attempt = 0;
+    }
+}
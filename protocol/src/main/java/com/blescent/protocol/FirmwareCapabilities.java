@@ -0,0 +1,64 @@
+package com.blescent.protocol;
+
+/**
+ * What a peripheral's firmware can do, as implied by its revision. Revisions below 0x20
+ * only understand the legacy play and stop frames; 0x20 and later speak the framed protocol
+ * with track, RFID and analytics commands; 0x26 and later take the longer settings payload.
+ */
+public final class FirmwareCapabilities {
+    public static final int FRAMED_PROTOCOL = 1;
+    public static final int EXTENDED_SETTINGS = 1 << 1;
+    public static final int STORED_TRACK = 1 << 2;
+    public static final int RFID = 1 << 3;
+    public static final int OFFLINE_ANALYTICS = 1 << 4;
+
+    private static final int FIRST_FRAMED_REVISION = 0x20;
+    private static final int FIRST_EXTENDED_SETTINGS_REVISION = 0x26;
+
+    private final byte revision;
+    private final int flags;
+
+    public FirmwareCapabilities(byte revision, int flags) {
+        this.revision = revision;
+        this.flags = flags;
+    }
+
+    public static FirmwareCapabilities forRevision(byte revision) {
+        int flags = 0;
+        if (revision >= FIRST_FRAMED_REVISION) {
+            flags |= FRAMED_PROTOCOL | STORED_TRACK | RFID | OFFLINE_ANALYTICS;
+        }
+        if (revision >= FIRST_EXTENDED_SETTINGS_REVISION) {
+            flags |= EXTENDED_SETTINGS;
+        }
+        return new FirmwareCapabilities(revision, flags);
+    }
+
+    public byte getRevision() {
+        return revision;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isFramedProtocol() {
+        return (flags & FRAMED_PROTOCOL) != 0;
+    }
+
+    public boolean isExtendedSettings() {
+        return (flags & EXTENDED_SETTINGS) != 0;
+    }
+
+    public boolean isStoredTrack() {
+        return (flags & STORED_TRACK) != 0;
+    }
+
+    public boolean isRfid() {
+        return (flags & RFID) != 0;
+    }
+
+    public boolean isOfflineAnalytics() {
+        return (flags & OFFLINE_ANALYTICS) != 0;
+    }
+}
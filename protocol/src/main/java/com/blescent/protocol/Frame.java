@@ -0,0 +1,72 @@
+package com.blescent.protocol;
+
+/**
+ * A view over one complete 'V','C' response frame held in a {@link FrameDecoder}'s buffer.
+ * The view is reused for every frame and is only valid inside the listener callback; use
+ * {@link #copyPayload()} for anything that has to outlive it.
+ */
+public final class Frame {
+    // 'V', 'C', firmware revision, response status, opcode, payload length (2 bytes)
+    public static final int HEADER_LENGTH = 7;
+    public static final int CHECKSUM_LENGTH = 1;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    void wrap(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte getFirmwareRevision() {
+        return buffer[offset + 2];
+    }
+
+    public byte getStatus() {
+        return buffer[offset + 3];
+    }
+
+    public byte getOpcode() {
+        return buffer[offset + 4];
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getPayloadLength() {
+        return length - HEADER_LENGTH - CHECKSUM_LENGTH;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getPayloadOffset() {
+        return offset + HEADER_LENGTH;
+    }
+
+    public byte getPayloadByte(int index) {
+        return buffer[offset + HEADER_LENGTH + index];
+    }
+
+    /**
+     * Reads a little-endian unsigned 16 bit value starting at {@code index} in the payload.
+     */
+    public int getPayloadUInt16(int index) {
+        int position = offset + HEADER_LENGTH + index;
+        return (buffer[position] & 0xFF) | ((buffer[position + 1] & 0xFF) << 8);
+    }
+
+    public byte[] copyPayload() {
+        return copyPayload(0, getPayloadLength());
+    }
+
+    public byte[] copyPayload(int from, int to) {
+        byte[] copy = new byte[to - from];
+        System.arraycopy(buffer, offset + HEADER_LENGTH + from, copy, 0, copy.length);
+        return copy;
+    }
+}
@@ -0,0 +1,228 @@
+package com.blescent.protocol;
+
+/**
+ * Incremental decoder for 'V','C' response frames.
+ * <p>
+ * Incoming notification chunks are appended to a primitive ring buffer and parsed as they
+ * arrive; the decoder remembers how long the frame it is waiting on is, so each byte is looked
+ * at a constant number of times no matter how many chunks a response is split over. A bad
+ * frame only costs its first byte: the decoder resyncs on the next 'V','C' header instead of
+ * dropping everything it has buffered.
+ */
+public class FrameDecoder {
+
+    public interface Listener {
+        /**
+         * Called for every frame that passed its checksum. The frame is a view over the
+         * decoder's buffer and must not be kept after the call returns.
+         */
+        void onFrame(Frame frame);
+
+        /**
+         * Called when bytes were thrown away while looking for the next valid frame.
+         */
+        void onDiscarded(int reason, int byteCount);
+    }
+
+    /**
+     * Sees a frame's payload as its chunks arrive, for responses long enough that decoding
+     * them all at the end would stall the thread. The bytes are unchecked: a frame that fails
+     * its checksum is reported to {@link Listener#onDiscarded} afterwards, and a new
+     * {@link #onPayloadStart} means whatever came before it never became a frame.
+     */
+    public interface PayloadListener {
+        void onPayloadStart(byte opcode, int payloadLength);
+
+        /**
+         * Called with the next payload bytes. They are a view over the decoder's buffer and
+         * must not be kept after the call returns.
+         */
+        void onPayload(byte[] buffer, int offset, int length);
+    }
+
+    // 1 was the oversized payload length discard, retired now that any 16 bit length is
+    // accepted. It is not reused so a logged reason keeps meaning the same thing.
+    public static final int DISCARD_NOT_A_HEADER = 0;
+    public static final int DISCARD_INVALID_CHECKSUM = 2;
+
+    // The most the 16 bit length field can describe. An offline analytics dump grows with
+    // the number of records the device holds, so any length up to this is a real response; a
+    // corrupt one is dropped by the reset when the command it held up times out.
+    public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    private final Listener listener;
+    private PayloadListener payloadListener;
+    private final Frame frame = new Frame();
+    private byte[] ring = new byte[INITIAL_CAPACITY];
+    private byte[] spare = new byte[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int head;
+    private int size;
+    // Total length of the frame whose header has been read, or -1 while looking for a header.
+    private int expectedLength = -1;
+    // Payload bytes of that frame already handed to the payload listener.
+    private int streamedLength;
+
+    public FrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setPayloadListener(PayloadListener payloadListener) {
+        this.payloadListener = payloadListener;
+    }
+
+    public void feed(byte[] data) {
+        feed(data, 0, data.length);
+    }
+
+    public void feed(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        ensureCapacity(size + length);
+        int tail = (head + size) & mask;
+        int firstPart = Math.min(length, ring.length - tail);
+        System.arraycopy(data, offset, ring, tail, firstPart);
+        System.arraycopy(data, offset + firstPart, ring, 0, length - firstPart);
+        size += length;
+        drain();
+    }
+
+    /**
+     * Throws away any partially received frame.
+     */
+    public void reset() {
+        head = 0;
+        size = 0;
+        expectedLength = -1;
+    }
+
+    public int getBufferedByteCount() {
+        return size;
+    }
+
+    private void drain() {
+        while (true) {
+            if (expectedLength < 0) {
+                if (!syncToHeader() || size < Frame.HEADER_LENGTH) {
+                    return;
+                }
+                int payloadLength = (byteAt(5) & 0xFF) | ((byteAt(6) & 0xFF) << 8);
+                expectedLength = Frame.HEADER_LENGTH + payloadLength + Frame.CHECKSUM_LENGTH;
+                ensureCapacity(expectedLength);
+                streamedLength = 0;
+                if (payloadListener != null) {
+                    payloadListener.onPayloadStart(byteAt(4), payloadLength);
+                }
+            }
+            if (payloadListener != null) {
+                streamPayload();
+            }
+            if (size < expectedLength) {
+                return;
+            }
+            int frameLength = expectedLength;
+            expectedLength = -1;
+            byte sum = 0;
+            for (int i = 0; i < frameLength; i++) {
+                sum += byteAt(i);
+            }
+            if (sum != 0) {
+                discard(1, DISCARD_INVALID_CHECKSUM);
+                continue;
+            }
+            if (head + frameLength > ring.length) {
+                linearize();
+            }
+            frame.wrap(ring, head, frameLength);
+            listener.onFrame(frame);
+            head = (head + frameLength) & mask;
+            size -= frameLength;
+        }
+    }
+
+    private void streamPayload() {
+        int received = Math.min(size, expectedLength - Frame.CHECKSUM_LENGTH) - Frame.HEADER_LENGTH;
+        int length = received - streamedLength;
+        if (length <= 0) {
+            return;
+        }
+        int start = (head + Frame.HEADER_LENGTH + streamedLength) & mask;
+        int firstPart = Math.min(length, ring.length - start);
+        payloadListener.onPayload(ring, start, firstPart);
+        if (firstPart < length) {
+            payloadListener.onPayload(ring, 0, length - firstPart);
+        }
+        streamedLength = received;
+    }
+
+    /**
+     * Skips bytes until the buffer starts with 'V','C'. Returns false if more data is needed.
+     */
+    private boolean syncToHeader() {
+        int skipped = 0;
+        while (size > 0) {
+            if (byteAt(0) == 'V') {
+                if (size < 2) {
+                    break;
+                }
+                if (byteAt(1) == 'C') {
+                    break;
+                }
+            }
+            head = (head + 1) & mask;
+            size--;
+            skipped++;
+        }
+        if (skipped > 0) {
+            listener.onDiscarded(DISCARD_NOT_A_HEADER, skipped);
+        }
+        return size >= 2;
+    }
+
+    private void discard(int byteCount, int reason) {
+        head = (head + byteCount) & mask;
+        size -= byteCount;
+        listener.onDiscarded(reason, byteCount);
+    }
+
+    private byte byteAt(int index) {
+        return ring[(head + index) & mask];
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= ring.length) {
+            return;
+        }
+        int capacity = ring.length;
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+        // The spare array catches up the next time a frame wraps around, if one ever does.
+        moveTo(new byte[capacity]);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Moves the buffered bytes to the start of the spare array and swaps the two, so that
+     * the frame at the head can be handed out as one contiguous range.
+     */
+    private void linearize() {
+        if (spare.length != ring.length) {
+            spare = new byte[ring.length];
+        }
+        byte[] previous = ring;
+        moveTo(spare);
+        spare = previous;
+    }
+
+    private void moveTo(byte[] target) {
+        int firstPart = Math.min(size, ring.length - head);
+        System.arraycopy(ring, head, target, 0, firstPart);
+        System.arraycopy(ring, 0, target, firstPart, size - firstPart);
+        ring = target;
+        head = 0;
+    }
+}
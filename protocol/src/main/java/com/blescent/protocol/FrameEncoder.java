@@ -0,0 +1,198 @@
+package com.blescent.protocol;
+
+/**
+ * Builds outbound command frames: 'V','C', program id, revision, opcode, little-endian
+ * payload length, payload and checksum. Also builds the raw frames legacy (&lt; 0x20)
+ * firmware expects for playing and stopping a scent.
+ * <p>
+ * Frames that never change, those of {@link #packEmpty(byte)}, {@link #enableTimeout(boolean)}
+ * and {@link #legacyStopScent()}, are built once and shared; nothing may modify them.
+ */
+public final class FrameEncoder {
+    public static final byte PROGRAM_ID = 1;
+    public static final byte REVISION = 1;
+    // First byte of the legacy play and stop frames.
+    public static final byte LEGACY_PLAY_SCENT = '*';
+    public static final byte LEGACY_STOP_SCENT = '!';
+
+    private static final int LEGACY_PLAY_OVERHEAD = 5;
+    private static final int PLAY_SCENT_OVERHEAD = 4;
+    private static final int SETTINGS_LENGTH = 4;
+    private static final int EXTENDED_SETTINGS_LENGTH = 7;
+    // Scent codes are ASCII; anything else is sent as '?', as the US-ASCII encoder does.
+    private static final char UNMAPPABLE = '?';
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+    private static final byte[][] EMPTY_FRAMES = new byte[Opcodes.COUNT][];
+    private static final byte[] TIMEOUT_ENABLED = pack(Opcodes.ENABLE_TIMEOUT, new byte[]{0x01});
+    private static final byte[] TIMEOUT_DISABLED = pack(Opcodes.ENABLE_TIMEOUT, new byte[]{0x00});
+    private static final byte[] LEGACY_STOP_FRAME = {LEGACY_STOP_SCENT};
+
+    static {
+        for (byte opcode = 0; opcode < Opcodes.COUNT; opcode++) {
+            EMPTY_FRAMES[opcode] = pack(opcode, NO_PAYLOAD);
+        }
+    }
+
+    private FrameEncoder() {
+    }
+
+    public static int frameLength(int payloadLength) {
+        return Frame.HEADER_LENGTH + payloadLength + Frame.CHECKSUM_LENGTH;
+    }
+
+    /**
+     * @return the shared frame of a command without payload, such as a stop or a query.
+     */
+    public static byte[] packEmpty(byte opcode) {
+        return EMPTY_FRAMES[opcode];
+    }
+
+    public static byte[] pack(byte opcode, byte[] payload) {
+        byte[] frame = new byte[frameLength(payload.length)];
+        pack(opcode, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * Writes a frame into {@code destination} and returns the number of bytes written.
+     */
+    public static int pack(byte opcode, byte[] payload, int payloadOffset, int payloadLength,
+                           byte[] destination, int destinationOffset) {
+        int position = putHeader(opcode, payloadLength, destination, destinationOffset);
+        System.arraycopy(payload, payloadOffset, destination, position, payloadLength);
+        position += payloadLength;
+        destination[position] = Checksum.calculate(destination, destinationOffset, position - destinationOffset);
+        return position + 1 - destinationOffset;
+    }
+
+    private static int putHeader(byte opcode, int payloadLength, byte[] destination, int offset) {
+        int position = offset;
+        destination[position++] = 'V';
+        destination[position++] = 'C';
+        destination[position++] = PROGRAM_ID;
+        destination[position++] = REVISION;
+        destination[position++] = opcode;
+        destination[position++] = (byte) (payloadLength & 0xff);
+        destination[position++] = (byte) ((payloadLength >> 8) & 0xff);
+        return position;
+    }
+
+    public static byte[] playScent(int duration, int intensity, byte[] scentCode) {
+        byte[] frame = startPlayScent(duration, intensity, scentCode.length);
+        System.arraycopy(scentCode, 0, frame, Frame.HEADER_LENGTH + PLAY_SCENT_OVERHEAD, scentCode.length);
+        return finish(frame);
+    }
+
+    /**
+     * Like {@link #playScent(int, int, byte[])}, writing the scent code's characters
+     * straight into the frame instead of encoding it to a separate array first.
+     */
+    public static byte[] playScent(int duration, int intensity, String scentCode) {
+        byte[] frame = startPlayScent(duration, intensity, scentCode.length());
+        putAscii(scentCode, frame, Frame.HEADER_LENGTH + PLAY_SCENT_OVERHEAD);
+        return finish(frame);
+    }
+
+    /**
+     * Allocates a play frame and fills in everything but the scent code and checksum, so the
+     * payload is built in place.
+     */
+    private static byte[] startPlayScent(int duration, int intensity, int scentCodeLength) {
+        int payloadLength = PLAY_SCENT_OVERHEAD + scentCodeLength;
+        byte[] frame = new byte[frameLength(payloadLength)];
+        int position = putHeader(Opcodes.PLAY_SCENT, payloadLength, frame, 0);
+        frame[position++] = overflowMaxToByte(intensity);
+        frame[position++] = (byte) (duration & 0xff);
+        frame[position++] = (byte) ((duration >> 8) & 0xff);
+        frame[position] = (byte) scentCodeLength;
+        return frame;
+    }
+
+    private static byte[] finish(byte[] frame) {
+        int checksumOffset = frame.length - Frame.CHECKSUM_LENGTH;
+        frame[checksumOffset] = Checksum.calculate(frame, 0, checksumOffset);
+        return frame;
+    }
+
+    private static void putAscii(String text, byte[] destination, int offset) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            destination[offset + i] = (byte) (c < 0x80 ? c : UNMAPPABLE);
+        }
+    }
+
+    public static byte[] enableTimeout(boolean isEnable) {
+        return isEnable ? TIMEOUT_ENABLED : TIMEOUT_DISABLED;
+    }
+
+    /**
+     * @param extended whether to include the auto-play fields (firmware 0x26 and later).
+     */
+    public static byte[] writeSettings(int fanSpeedPercentage, boolean isTimeoutOn, int timeoutMinutes,
+                                       boolean isAutoPlayOn, int autoPlaySeconds, boolean extended) {
+        byte[] frame = new byte[settingsFrameLength(extended)];
+        writeSettings(fanSpeedPercentage, isTimeoutOn, timeoutMinutes, isAutoPlayOn, autoPlaySeconds, extended,
+                frame, 0);
+        return frame;
+    }
+
+    /**
+     * Like {@link #writeSettings(int, boolean, int, boolean, int, boolean)}, building the
+     * frame in {@code destination}. Returns the number of bytes written.
+     */
+    public static int writeSettings(int fanSpeedPercentage, boolean isTimeoutOn, int timeoutMinutes,
+                                    boolean isAutoPlayOn, int autoPlaySeconds, boolean extended,
+                                    byte[] destination, int destinationOffset) {
+        int payloadLength = extended ? EXTENDED_SETTINGS_LENGTH : SETTINGS_LENGTH;
+        int position = putHeader(Opcodes.WRITE_SETTINGS, payloadLength, destination, destinationOffset);
+        destination[position++] = (byte) fanSpeedPercentage;
+        destination[position++] = (byte) (isTimeoutOn ? 0x01 : 0x00);
+        destination[position++] = (byte) (timeoutMinutes & 0xff);
+        destination[position++] = (byte) ((timeoutMinutes >> 8) & 0xff);
+        if (extended) {
+            destination[position++] = (byte) (isAutoPlayOn ? 0x01 : 0x00);
+            destination[position++] = (byte) (autoPlaySeconds & 0xff);
+            destination[position++] = (byte) ((autoPlaySeconds >> 8) & 0xff);
+        }
+        destination[position] = Checksum.calculate(destination, destinationOffset, position - destinationOffset);
+        return position + 1 - destinationOffset;
+    }
+
+    public static int settingsFrameLength(boolean extended) {
+        return frameLength(extended ? EXTENDED_SETTINGS_LENGTH : SETTINGS_LENGTH);
+    }
+
+    public static byte[] legacyPlayScent(int duration, int intensity, byte[] scentCode) {
+        byte[] frame = startLegacyPlayScent(duration, intensity, scentCode.length);
+        System.arraycopy(scentCode, 0, frame, 4, scentCode.length);
+        return frame;
+    }
+
+    public static byte[] legacyPlayScent(int duration, int intensity, String scentCode) {
+        byte[] frame = startLegacyPlayScent(duration, intensity, scentCode.length());
+        putAscii(scentCode, frame, 4);
+        return frame;
+    }
+
+    private static byte[] startLegacyPlayScent(int duration, int intensity, int scentCodeLength) {
+        byte[] frame = new byte[LEGACY_PLAY_OVERHEAD + scentCodeLength];
+        frame[0] = LEGACY_PLAY_SCENT;
+        frame[1] = overflowMaxToByte(intensity);
+        frame[2] = '@';
+        frame[3] = overflowMaxToByte(duration);
+        frame[frame.length - 1] = 'Z';
+        return frame;
+    }
+
+    /**
+     * @return the shared legacy stop frame.
+     */
+    public static byte[] legacyStopScent() {
+        return LEGACY_STOP_FRAME;
+    }
+
+    private static byte overflowMaxToByte(int value) {
+        return (value > 0xff) ? (byte) 0xff : (byte) (value & 0xff);
+    }
+}
@@ -0,0 +1,167 @@
+package com.blescent.protocol;
+
+/**
+ * Judges link health from the peripheral's heartbeats. It learns the usual interval between
+ * heartbeats and its variation, the same way TCP estimates round-trip time. Once heartbeats
+ * are overdue the link is suspect, and a while later dead. Until a few intervals have been
+ * seen it never reports anything, so firmware that sends no heartbeats is left alone.
+ * <p>
+ * One timer is kept armed while the link is alive and is only re-armed when it fires, so a
+ * heartbeat costs a few arithmetic operations.
+ */
+public class HeartbeatWatchdog {
+
+    public interface Listener {
+        /**
+         * Called when no heartbeat arrived for noticeably longer than usual.
+         */
+        void onLinkSuspect(long silenceMillis);
+
+        /**
+         * Called once the silence has gone on long enough that the link is taken to be gone.
+         */
+        void onLinkDead(long silenceMillis);
+
+        /**
+         * Called when a heartbeat arrives after the link was reported suspect or dead.
+         */
+        void onLinkRecovered();
+    }
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_ALIVE = 1;
+    public static final int STATE_SUSPECT = 2;
+    public static final int STATE_DEAD = 3;
+
+    // Intervals to see before the learned interval is trusted.
+    private static final int MIN_SAMPLES = 3;
+    // Never call a link suspect sooner than this after the last heartbeat.
+    public static final int DEFAULT_MIN_SUSPECT_TIMEOUT = 500;
+    // Missed intervals, after the link became suspect, before it is dead.
+    public static final int DEFAULT_DEAD_INTERVALS = 2;
+
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private int minSuspectTimeout = DEFAULT_MIN_SUSPECT_TIMEOUT;
+    private int deadIntervals = DEFAULT_DEAD_INTERVALS;
+    private int state = STATE_IDLE;
+    private long lastHeartbeat = -1;
+    private int samples;
+    private double meanInterval;
+    private double intervalDeviation;
+    private Scheduler.Cancellable pendingCheck;
+
+    private final Runnable checkTask = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    public HeartbeatWatchdog(Scheduler scheduler, Listener listener) {
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    public synchronized void setMinSuspectTimeout(int minSuspectTimeout) {
+        this.minSuspectTimeout = minSuspectTimeout;
+    }
+
+    public synchronized void setDeadIntervals(int deadIntervals) {
+        this.deadIntervals = deadIntervals;
+    }
+
+    /**
+     * Starts watching a new connection, forgetting the previous one's heartbeat times but
+     * keeping the learned interval.
+     */
+    public synchronized void start() {
+        cancelCheck();
+        state = STATE_ALIVE;
+        lastHeartbeat = -1;
+    }
+
+    public synchronized void stop() {
+        cancelCheck();
+        state = STATE_IDLE;
+    }
+
+    public synchronized void onHeartbeat() {
+        if (state == STATE_IDLE) {
+            return;
+        }
+        long now = scheduler.now();
+        // The silence that made the link suspect is an outage, not an interval to learn.
+        if (lastHeartbeat >= 0 && state == STATE_ALIVE) {
+            learn(now - lastHeartbeat);
+        }
+        lastHeartbeat = now;
+        if (state != STATE_ALIVE) {
+            state = STATE_ALIVE;
+            listener.onLinkRecovered();
+        }
+        if (pendingCheck == null && samples >= MIN_SAMPLES) {
+            pendingCheck = scheduler.schedule(checkTask, getSuspectTimeout());
+        }
+    }
+
+    private void learn(long interval) {
+        if (samples == 0) {
+            meanInterval = interval;
+            intervalDeviation = interval / 2.0;
+        } else {
+            double error = interval - meanInterval;
+            meanInterval += error / 8;
+            intervalDeviation += (Math.abs(error) - intervalDeviation) / 4;
+        }
+        samples++;
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * @return the learned interval between heartbeats, or 0 if none has been learned yet.
+     */
+    public synchronized long getExpectedInterval() {
+        return samples == 0 ? 0 : Math.round(meanInterval);
+    }
+
+    /**
+     * @return how long after the last heartbeat the link becomes suspect.
+     */
+    public synchronized long getSuspectTimeout() {
+        return Math.max(minSuspectTimeout, Math.round(meanInterval + 4 * intervalDeviation));
+    }
+
+    private long getDeadTimeout() {
+        return getSuspectTimeout() + deadIntervals * Math.max(minSuspectTimeout, Math.round(meanInterval));
+    }
+
+    private synchronized void check() {
+        pendingCheck = null;
+        if (state == STATE_IDLE || state == STATE_DEAD) {
+            return;
+        }
+        long silence = scheduler.now() - lastHeartbeat;
+        if (state == STATE_ALIVE && silence >= getSuspectTimeout()) {
+            state = STATE_SUSPECT;
+            listener.onLinkSuspect(silence);
+        }
+        if (state == STATE_SUSPECT && silence >= getDeadTimeout()) {
+            state = STATE_DEAD;
+            listener.onLinkDead(silence);
+            return;
+        }
+        long next = state == STATE_ALIVE ? getSuspectTimeout() : getDeadTimeout();
+        pendingCheck = scheduler.schedule(checkTask, next - silence);
+    }
+
+    private void cancelCheck() {
+        if (pendingCheck != null) {
+            pendingCheck.cancel();
+            pendingCheck = null;
+        }
+    }
+}
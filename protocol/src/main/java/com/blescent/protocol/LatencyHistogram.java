@@ -0,0 +1,97 @@
+package com.blescent.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Counts durations in power-of-two millisecond buckets: bucket 0 holds 0 ms, bucket
+ * {@code i} holds {@code [2^(i-1), 2^i)} ms and the last bucket holds everything longer.
+ * Recording is a few arithmetic operations and never allocates.
+ */
+public final class LatencyHistogram {
+    public static final int BUCKET_COUNT = 18;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long max;
+
+    LatencyHistogram() {
+    }
+
+    private LatencyHistogram(LatencyHistogram other) {
+        System.arraycopy(other.counts, 0, counts, 0, BUCKET_COUNT);
+        count = other.count;
+        sum = other.sum;
+        max = other.max;
+    }
+
+    void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts[bucketOf(millis)]++;
+        count++;
+        sum += millis;
+        if (millis > max) {
+            max = millis;
+        }
+    }
+
+    LatencyHistogram copy() {
+        return new LatencyHistogram(this);
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    static int bucketOf(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+
+    /**
+     * @return the largest duration that falls in {@code bucket}.
+     */
+    public static long bucketUpperBound(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    public long getBucketCount(int bucket) {
+        return counts[bucket];
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return an upper bound for the given percentile (0-100): the top of the bucket it falls
+     * in, capped at the largest recorded value.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+}
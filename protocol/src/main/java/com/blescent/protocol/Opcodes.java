@@ -0,0 +1,39 @@
+package com.blescent.protocol;
+
+/**
+ * Command opcodes understood by firmware revision 0x20 and later.
+ */
+public final class Opcodes {
+    public static final byte PLAY_SCENT = 0;
+    public static final byte STOP_SCENT = 1;
+    public static final byte QUERY_STATUS = 2;
+    public static final byte WRITE_TRACK = 3;
+    public static final byte READ_TRACK = 4;
+    public static final byte QUERY_RFID = 5;
+    public static final byte ENABLE_TIMEOUT = 6;
+    public static final byte WRITE_SETTINGS = 7;
+    public static final byte QUERY_OFFLINE_ANALYTICS = 8;
+    public static final byte CLEAR_OFFLINE_ANALYTICS = 9;
+
+    public static final int COUNT = 10;
+
+    /**
+     * @return whether a newer command with this opcode makes a pending one pointless, because
+     * only the last value sent matters.
+     */
+    public static boolean isLatestWins(int opcode) {
+        return opcode == PLAY_SCENT || opcode == ENABLE_TIMEOUT || opcode == WRITE_SETTINGS;
+    }
+
+    /**
+     * @return whether the command only reads state, so sending it twice in a row gets the
+     * same answer as sending it once.
+     */
+    public static boolean isQuery(int opcode) {
+        return opcode == QUERY_STATUS || opcode == READ_TRACK || opcode == QUERY_RFID
+                || opcode == QUERY_OFFLINE_ANALYTICS;
+    }
+
+    private Opcodes() {
+    }
+}
@@ -0,0 +1,92 @@
+package com.blescent.protocol;
+
+/**
+ * A track write held back while a read checks whether the device already stores the track.
+ * If it does, the write is skipped; if it doesn't, or the read fails for any reason, the
+ * track is written. At most one write is held: holding another supersedes it.
+ * <p>
+ * Only touched on the thread that runs the session's commands.
+ */
+public class PendingTrackWrite {
+
+    public interface Writer {
+        /**
+         * Sends the track.
+         *
+         * @return the write's future.
+         */
+        CommandFuture<Void> write(byte[] track);
+    }
+
+    private final Writer writer;
+    private byte[] track;
+    private CommandFuture<Void> future;
+
+    public PendingTrackWrite(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Holds {@code track} until {@link #onVerified(boolean)} is called or {@code verifyRead}
+     * fails; {@code future} completes with the outcome.
+     */
+    public void hold(byte[] track, CommandFuture<Void> future, CommandFuture<?> verifyRead) {
+        if (this.future != null) {
+            this.future.setException(new CommandException(CommandException.Reason.SUPERSEDED,
+                    "Superseded by a later track."));
+        }
+        this.track = track;
+        this.future = future;
+        final CommandFuture<Void> held = future;
+        verifyRead.addCallback(new CommandFuture.Callback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                // The response went to onVerified() before the read completed.
+            }
+
+            @Override
+            public void onFailure(CommandException error) {
+                if (PendingTrackWrite.this.future == held) {
+                    // Couldn't check what the device holds; write the track anyway.
+                    write();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the track being held, or null.
+     */
+    public byte[] getTrack() {
+        return track;
+    }
+
+    /**
+     * Called when the device has said which track it stores.
+     *
+     * @return true if a track was held and the device already has it, so the write was
+     * skipped and its future has succeeded.
+     */
+    public boolean onVerified(boolean deviceHoldsTrack) {
+        if (track == null) {
+            return false;
+        }
+        if (!deviceHoldsTrack) {
+            write();
+            return false;
+        }
+        CommandFuture<Void> held = future;
+        track = null;
+        future = null;
+        held.set(null);
+        return true;
+    }
+
+    private void write() {
+        byte[] held = track;
+        CommandFuture<Void> heldFuture = future;
+        track = null;
+        future = null;
+        heldFuture.setFrom(writer.write(held));
+    }
+}
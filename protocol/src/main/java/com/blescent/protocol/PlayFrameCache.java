@@ -0,0 +1,61 @@
+package com.blescent.protocol;
+
+/**
+ * Play frames recently built for one device, so playing the same scent again reuses its
+ * frame instead of encoding a new one. Frames are immutable once built and may be sent by
+ * any number of commands at once.
+ * <p>
+ * The cache is direct-mapped: each (duration, intensity, scent code) goes in one slot
+ * chosen by its hash, replacing whatever was there. A hit allocates nothing.
+ */
+public class PlayFrameCache {
+    private static final int SIZE = 16;
+
+    private final String[] scentCodes = new String[SIZE];
+    private final int[] durations = new int[SIZE];
+    private final int[] intensities = new int[SIZE];
+    private final boolean[] legacy = new boolean[SIZE];
+    private final byte[][] frames = new byte[SIZE][];
+    private long hits;
+    private long misses;
+
+    /**
+     * @param legacyFirmware whether to build the frame firmware older than 0x20 expects.
+     */
+    public synchronized byte[] get(int duration, int intensity, String scentCode, boolean legacyFirmware) {
+        int hash = scentCode.hashCode();
+        hash = 31 * hash + duration;
+        hash = 31 * hash + intensity;
+        int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+        byte[] frame = frames[slot];
+        if (frame != null && durations[slot] == duration && intensities[slot] == intensity
+                && legacy[slot] == legacyFirmware && scentCode.equals(scentCodes[slot])) {
+            hits++;
+            return frame;
+        }
+        misses++;
+        frame = legacyFirmware ? FrameEncoder.legacyPlayScent(duration, intensity, scentCode)
+                : FrameEncoder.playScent(duration, intensity, scentCode);
+        scentCodes[slot] = scentCode;
+        durations[slot] = duration;
+        intensities[slot] = intensity;
+        legacy[slot] = legacyFirmware;
+        frames[slot] = frame;
+        return frame;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < SIZE; i++) {
+            scentCodes[i] = null;
+            frames[i] = null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.blescent.protocol;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One dedicated thread that owns protocol state. Work from other threads (API calls,
+ * Bluetooth callbacks) is posted to a lock-free inbox and run in posting order; timers
+ * live in a heap only this thread touches. Code running here can use the state it owns
+ * without locks, and callers never wait for each other.
+ * <p>
+ * The thread sleeps when there is nothing to do. Posting only wakes it if it is actually
+ * asleep, so a burst of posts costs one wake-up.
+ * <p>
+ * A task that throws is logged and the thread carries on with the next one, so one
+ * session's bug doesn't stop every other session sharing the actor.
+ */
+public class ProtocolActor implements Scheduler, Executor {
+
+    private static final Logger LOG = Logger.getLogger(ProtocolActor.class.getName());
+
+    private static final class Timer implements Comparable<Timer>, Cancellable {
+        final Runnable task;
+        final long dueTime;
+        // Set when the timer is armed on the actor thread.
+        long sequence;
+        volatile boolean cancelled;
+
+        Timer(Runnable task, long dueTime) {
+            this.task = task;
+            this.dueTime = dueTime;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (dueTime != other.dueTime) {
+                return dueTime < other.dueTime ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    // Only touched on the actor thread.
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timerSequence;
+    private final Thread thread;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+
+    public ProtocolActor(String name) {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the thread once the work already posted has run. Timers that are not yet due
+     * are dropped.
+     */
+    public void shutdown() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+            }
+        });
+    }
+
+    /**
+     * @return whether the caller is running on the actor thread.
+     */
+    public boolean isActorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        inbox.offer(task);
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Runs {@code task} on the actor thread after {@code delayMillis}. Can be called from any
+     * thread; the returned handle can be cancelled from any thread too.
+     */
+    @Override
+    public Cancellable schedule(Runnable task, long delayMillis) {
+        final Timer timer = new Timer(task, now() + Math.max(0, delayMillis));
+        if (isActorThread()) {
+            addTimer(timer);
+            return timer;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                addTimer(timer);
+            }
+        });
+        return timer;
+    }
+
+    private void addTimer(Timer timer) {
+        // Timers due at the same time fire in the order they were armed.
+        timer.sequence = timerSequence++;
+        timers.add(timer);
+    }
+
+    private void loop() {
+        while (running) {
+            Runnable task;
+            while (running && (task = inbox.poll()) != null) {
+                runTask(task);
+            }
+            long wait = runDueTimers();
+            if (!running || !inbox.isEmpty()) {
+                continue;
+            }
+            sleeping = true;
+            // A post between the check above and parking leaves a permit, so park returns.
+            if (inbox.isEmpty()) {
+                if (wait < 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+                }
+            }
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Runs the timers that are due and returns how long until the next one, or -1 if none is
+     * armed.
+     */
+    private long runDueTimers() {
+        while (true) {
+            Timer timer = timers.peek();
+            if (timer == null) {
+                return -1;
+            }
+            if (timer.cancelled) {
+                timers.remove();
+                continue;
+            }
+            long wait = timer.dueTime - now();
+            if (wait > 0) {
+                return wait;
+            }
+            timers.remove();
+            runTask(timer.task);
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException | Error e) {
+            LOG.log(Level.SEVERE, "Task " + task + " failed on " + thread.getName(), e);
+        }
+    }
+}
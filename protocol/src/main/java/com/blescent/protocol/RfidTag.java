@@ -0,0 +1,64 @@
+package com.blescent.protocol;
+
+/**
+ * Decoded payload of an RFID (opcode 5) reply: valid flag, tag version, device type
+ * (e.g. 1 = Cyrano), family code and identifier.
+ */
+public final class RfidTag {
+    private final byte valid;
+    private final byte version;
+    private final byte deviceType;
+    private final short familyCode;
+    private final byte[] identifier;
+
+    RfidTag(byte valid, byte version, byte deviceType, short familyCode, byte[] identifier) {
+        this.valid = valid;
+        this.version = version;
+        this.deviceType = deviceType;
+        this.familyCode = familyCode;
+        this.identifier = identifier;
+    }
+
+    /**
+     * @return the decoded tag, or null if the payload is truncated.
+     */
+    public static RfidTag decode(Frame frame) {
+        int length = frame.getPayloadLength();
+        int position = 0;
+        if (length < 7) {
+            return null;
+        }
+        byte valid = frame.getPayloadByte(position++);
+        byte version = frame.getPayloadByte(position++);
+        byte deviceType = frame.getPayloadByte(position++);
+        short familyCode = (short) frame.getPayloadUInt16(position);
+        position += 2;
+        int identifierLength = frame.getPayloadUInt16(position);
+        position += 2;
+        if (length - position < identifierLength) {
+            return null;
+        }
+        byte[] identifier = frame.copyPayload(position, position + identifierLength);
+        return new RfidTag(valid, version, deviceType, familyCode, identifier);
+    }
+
+    public byte getValid() {
+        return valid;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    public byte getDeviceType() {
+        return deviceType;
+    }
+
+    public short getFamilyCode() {
+        return familyCode;
+    }
+
+    public byte[] getIdentifier() {
+        return identifier;
+    }
+}
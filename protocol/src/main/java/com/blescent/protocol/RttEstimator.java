@@ -0,0 +1,189 @@
+package com.blescent.protocol;
+
+/**
+ * Round-trip time estimates for one link, kept per opcode the way TCP keeps them (RFC 6298):
+ * a smoothed round trip and its mean deviation, giving a timeout of srtt + 4 * rttvar
+ * clamped to a range. Until an opcode's first sample it uses the estimate of all opcodes
+ * together, and before any sample at all the initial timeout.
+ * <p>
+ * Only commands answered on their first send are sampled, since the response to a resent
+ * command can't be matched to one of its sends (Karn's algorithm). Instead each first send
+ * that times out doubles the opcode's timeout, up to the maximum, until a command with that
+ * opcode completes again.
+ * <p>
+ * Per-opcode figures are indexed like {@link CommandMetrics}; legacy frames share the
+ * {@link Command#NO_OPCODE} slot.
+ */
+public final class RttEstimator {
+    public static final int DEFAULT_MIN_TIMEOUT = 250;
+    public static final int DEFAULT_MAX_TIMEOUT = 15000;
+    // Gains of the newest sample in the smoothed round trip and in its deviation.
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    // Doublings after which the timeout is certainly at the maximum.
+    private static final int MAX_BACKOFF = 16;
+    // The slot after the opcodes' holds the estimate of every sample on the link.
+    private static final int LINK = CommandMetrics.SLOTS;
+
+    private final double[] smoothed = new double[LINK + 1];
+    private final double[] variation = new double[LINK + 1];
+    private final long[] samples = new long[LINK + 1];
+    private final long[] lastSample = new long[LINK + 1];
+    private final long[] timeouts = new long[CommandMetrics.SLOTS];
+    private final int[] backoff = new int[CommandMetrics.SLOTS];
+    private long initialTimeout;
+    private long minTimeout = DEFAULT_MIN_TIMEOUT;
+    private long maxTimeout = DEFAULT_MAX_TIMEOUT;
+
+    public RttEstimator(long initialTimeout) {
+        this.initialTimeout = initialTimeout;
+    }
+
+    /**
+     * Sets the timeout of opcodes that haven't been sampled yet.
+     */
+    public synchronized void setInitialTimeout(long initialTimeout) {
+        this.initialTimeout = initialTimeout;
+    }
+
+    public synchronized void setTimeoutBounds(long minTimeout, long maxTimeout) {
+        if (minTimeout <= 0 || maxTimeout < minTimeout) {
+            throw new IllegalArgumentException("Invalid bounds " + minTimeout + ", " + maxTimeout);
+        }
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+    }
+
+    public synchronized long getMaxTimeout() {
+        return maxTimeout;
+    }
+
+    /**
+     * Records the round trip of a command that was answered on its first send.
+     */
+    public synchronized void onSample(int opcode, long roundTripMillis) {
+        int slot = CommandMetrics.slot(opcode);
+        update(slot, roundTripMillis);
+        update(LINK, roundTripMillis);
+        backoff[slot] = 0;
+    }
+
+    private void update(int slot, long roundTripMillis) {
+        if (samples[slot] == 0) {
+            smoothed[slot] = roundTripMillis;
+            variation[slot] = roundTripMillis / 2.0;
+        } else {
+            variation[slot] += BETA * (Math.abs(smoothed[slot] - roundTripMillis) - variation[slot]);
+            smoothed[slot] += ALPHA * (roundTripMillis - smoothed[slot]);
+        }
+        samples[slot]++;
+        lastSample[slot] = roundTripMillis;
+    }
+
+    /**
+     * Records a command that completed only after being resent: there is no sample, but the
+     * link works, so the timeout stops being doubled.
+     */
+    public synchronized void onCompletedAfterResend(int opcode) {
+        backoff[CommandMetrics.slot(opcode)] = 0;
+    }
+
+    /**
+     * Records the timeout of a first send, doubling the opcode's timeout until a command with
+     * that opcode completes. Resends back off on their own.
+     */
+    public synchronized void onTimeout(int opcode) {
+        int slot = CommandMetrics.slot(opcode);
+        timeouts[slot]++;
+        if (backoff[slot] < MAX_BACKOFF) {
+            backoff[slot]++;
+        }
+    }
+
+    /**
+     * @return how long to wait for a command with this opcode before resending it.
+     */
+    public synchronized long getTimeout(int opcode) {
+        return timeout(CommandMetrics.slot(opcode));
+    }
+
+    private long timeout(int slot) {
+        int from = samples[slot] > 0 ? slot : LINK;
+        long base = samples[from] == 0 ? initialTimeout
+                : (long) Math.ceil(smoothed[from] + 4 * variation[from]);
+        base = Math.max(minTimeout, Math.min(maxTimeout, base));
+        return Math.min(maxTimeout, base << backoff[slot]);
+    }
+
+    synchronized Estimate estimate(int slot) {
+        return new Estimate(smoothed[slot], variation[slot], timeout(slot), samples[slot],
+                lastSample[slot], timeouts[slot], backoff[slot]);
+    }
+
+    /**
+     * The estimator's state for one opcode at one point in time.
+     */
+    public static final class Estimate {
+        private final double smoothedRoundTrip;
+        private final double roundTripVariation;
+        private final long timeout;
+        private final long sampleCount;
+        private final long lastSample;
+        private final long timeoutCount;
+        private final int backoff;
+
+        private Estimate(double smoothedRoundTrip, double roundTripVariation, long timeout, long sampleCount,
+                         long lastSample, long timeoutCount, int backoff) {
+            this.smoothedRoundTrip = smoothedRoundTrip;
+            this.roundTripVariation = roundTripVariation;
+            this.timeout = timeout;
+            this.sampleCount = sampleCount;
+            this.lastSample = lastSample;
+            this.timeoutCount = timeoutCount;
+            this.backoff = backoff;
+        }
+
+        /**
+         * @return the smoothed round trip in milliseconds, or 0 before the first sample.
+         */
+        public double getSmoothedRoundTrip() {
+            return smoothedRoundTrip;
+        }
+
+        /**
+         * @return the mean deviation of the round trip in milliseconds.
+         */
+        public double getRoundTripVariation() {
+            return roundTripVariation;
+        }
+
+        /**
+         * @return the timeout the next first send of this opcode gets.
+         */
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public long getSampleCount() {
+            return sampleCount;
+        }
+
+        public long getLastSample() {
+            return lastSample;
+        }
+
+        /**
+         * @return how many first sends of this opcode timed out.
+         */
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        /**
+         * @return how many times the timeout has been doubled since the last sample.
+         */
+        public int getBackoff() {
+            return backoff;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.blescent.protocol;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen by a scan, one entry per address, with the RSSI smoothed by an exponential
+ * moving average. Holds at most a fixed number of devices, evicting the one not heard from
+ * for longest. Keeps track of which entries changed enough to be worth reporting, so
+ * consumers can be given deltas instead of every advertisement.
+ */
+public class ScanResultCache {
+    public static final int DEFAULT_CAPACITY = 64;
+    // Weight of the newest sample in the RSSI average.
+    public static final double DEFAULT_RSSI_SMOOTHING = 0.25;
+    // Smallest change in smoothed RSSI, in dB, that is reported.
+    public static final double DEFAULT_RSSI_REPORT_THRESHOLD = 2;
+
+    private static final class CachedDevice {
+        final String address;
+        String name;
+        double rssi;
+        int lastRssi;
+        final long firstSeen;
+        long lastSeen;
+        int advertisementCount;
+        double reportedRssi;
+        boolean changed;
+
+        CachedDevice(String address, long now) {
+            this.address = address;
+            this.firstSeen = now;
+        }
+
+        ScannedDevice toDevice() {
+            return new ScannedDevice(address, name, rssi, lastRssi, firstSeen, lastSeen, advertisementCount);
+        }
+    }
+
+    private final int capacity;
+    private double rssiSmoothing = DEFAULT_RSSI_SMOOTHING;
+    private double rssiReportThreshold = DEFAULT_RSSI_REPORT_THRESHOLD;
+    private final List<String> evicted = new ArrayList<>();
+    // Access order, so the eldest entry is the one heard from least recently.
+    private final LinkedHashMap<String, CachedDevice> entries;
+
+    public ScanResultCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ScanResultCache(final int capacity) {
+        this.capacity = capacity;
+        entries = new LinkedHashMap<String, CachedDevice>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDevice> eldest) {
+                if (size() > ScanResultCache.this.capacity) {
+                    evicted.add(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized void setRssiSmoothing(double rssiSmoothing) {
+        this.rssiSmoothing = rssiSmoothing;
+    }
+
+    public synchronized void setRssiReportThreshold(double rssiReportThreshold) {
+        this.rssiReportThreshold = rssiReportThreshold;
+    }
+
+    /**
+     * Records one advertisement.
+     *
+     * @param name the advertised name, or null if the advertisement had none.
+     */
+    public synchronized void onAdvertisement(String address, String name, int rssi, long now) {
+        CachedDevice entry = entries.get(address);
+        if (entry == null) {
+            entry = new CachedDevice(address, now);
+            entry.rssi = rssi;
+            entry.name = name;
+            entry.changed = true;
+            entries.put(address, entry);
+        } else {
+            entry.rssi += rssiSmoothing * (rssi - entry.rssi);
+            if (name != null && !name.equals(entry.name)) {
+                entry.name = name;
+                entry.changed = true;
+            }
+            if (Math.abs(entry.rssi - entry.reportedRssi) >= rssiReportThreshold) {
+                entry.changed = true;
+            }
+        }
+        entry.lastRssi = rssi;
+        entry.lastSeen = now;
+        entry.advertisementCount++;
+    }
+
+    /**
+     * @return the devices that are new or changed since the last call, and clears that mark.
+     */
+    public synchronized List<ScannedDevice> takeChanged() {
+        List<ScannedDevice> changed = new ArrayList<>();
+        for (CachedDevice entry : entries.values()) {
+            if (entry.changed) {
+                entry.changed = false;
+                entry.reportedRssi = entry.rssi;
+                changed.add(entry.toDevice());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Forgets devices not heard from for {@code maxAge} and returns their addresses, together
+     * with those evicted to make room since the last call.
+     */
+    public synchronized List<String> takeLost(long now, long maxAge) {
+        List<String> lost = new ArrayList<>(evicted);
+        evicted.clear();
+        Iterator<CachedDevice> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedDevice entry = it.next();
+            if (now - entry.lastSeen > maxAge) {
+                it.remove();
+                lost.add(entry.address);
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * @return the device with the strongest smoothed RSSI among those heard from within
+     * {@code maxAge}, or null.
+     */
+    public synchronized ScannedDevice getNearest(long now, long maxAge) {
+        CachedDevice nearest = null;
+        for (CachedDevice entry : entries.values()) {
+            if (now - entry.lastSeen <= maxAge && (nearest == null || entry.rssi > nearest.rssi)) {
+                nearest = entry;
+            }
+        }
+        return nearest == null ? null : nearest.toDevice();
+    }
+
+    public synchronized ScannedDevice get(String address) {
+        CachedDevice entry = entries.get(address);
+        return entry == null ? null : entry.toDevice();
+    }
+
+    public synchronized List<ScannedDevice> getDevices() {
+        List<ScannedDevice> devices = new ArrayList<>(entries.size());
+        for (CachedDevice entry : entries.values()) {
+            devices.add(entry.toDevice());
+        }
+        return devices;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        evicted.clear();
+    }
+}
@@ -0,0 +1,62 @@
+package com.blescent.protocol;
+
+/**
+ * What a scan has learnt about one advertising device, as of one moment.
+ */
+public final class ScannedDevice {
+    private final String address;
+    private final String name;
+    private final double rssi;
+    private final int lastRssi;
+    private final long firstSeen;
+    private final long lastSeen;
+    private final int advertisementCount;
+
+    ScannedDevice(String address, String name, double rssi, int lastRssi, long firstSeen, long lastSeen,
+                  int advertisementCount) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.lastRssi = lastRssi;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.advertisementCount = advertisementCount;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the advertised name, or null if none has been seen.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the RSSI in dBm, smoothed over recent advertisements.
+     */
+    public double getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @return the RSSI of the latest advertisement.
+     */
+    public int getLastRssi() {
+        return lastRssi;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public int getAdvertisementCount() {
+        return advertisementCount;
+    }
+}
@@ -0,0 +1,100 @@
+package com.blescent.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A cue list of scent plays and stops at offsets from the start of a show, for example a
+ * video. Cues at the same offset keep the order they were added in. Played by a
+ * {@link TimelinePlayer}.
+ */
+public class ScentTimeline {
+
+    /**
+     * One play or stop at an offset in milliseconds.
+     */
+    public static final class Cue {
+        private final long offset;
+        private final boolean play;
+        private final int duration;
+        private final int intensity;
+        private final String scentCode;
+
+        private Cue(long offset, boolean play, int duration, int intensity, String scentCode) {
+            this.offset = offset;
+            this.play = play;
+            this.duration = duration;
+            this.intensity = intensity;
+            this.scentCode = scentCode;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return true for a play, false for a stop.
+         */
+        public boolean isPlay() {
+            return play;
+        }
+
+        public int getDuration() {
+            return duration;
+        }
+
+        public int getIntensity() {
+            return intensity;
+        }
+
+        /**
+         * @return the scent code of a play, or null for a stop.
+         */
+        public String getScentCode() {
+            return scentCode;
+        }
+    }
+
+    private static final Comparator<Cue> BY_OFFSET = new Comparator<Cue>() {
+        @Override
+        public int compare(Cue a, Cue b) {
+            return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+        }
+    };
+
+    private final List<Cue> cues = new ArrayList<>();
+
+    public ScentTimeline addPlay(long offset, int duration, int intensity, String scentCode) {
+        return add(new Cue(offset, true, duration, intensity, scentCode));
+    }
+
+    public ScentTimeline addStop(long offset) {
+        return add(new Cue(offset, false, 0, 0, null));
+    }
+
+    private ScentTimeline add(Cue cue) {
+        if (cue.offset < 0) {
+            throw new IllegalArgumentException("Negative offset " + cue.offset);
+        }
+        cues.add(cue);
+        // Sorting is stable, so cues at the same offset keep their order.
+        Collections.sort(cues, BY_OFFSET);
+        return this;
+    }
+
+    /**
+     * @return the cues in the order they are played.
+     */
+    public List<Cue> getCues() {
+        return Collections.unmodifiableList(new ArrayList<>(cues));
+    }
+
+    /**
+     * @return the offset of the last cue, or 0 for an empty timeline.
+     */
+    public long getLength() {
+        return cues.isEmpty() ? 0 : cues.get(cues.size() - 1).offset;
+    }
+}
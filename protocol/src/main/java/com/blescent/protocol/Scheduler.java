@@ -0,0 +1,19 @@
+package com.blescent.protocol;
+
+/**
+ * Runs delayed tasks for the protocol code and tells it the time, so the same code can run
+ * on the {@link ProtocolActor} in the app or on a virtual clock in tests and simulations.
+ */
+public interface Scheduler {
+
+    interface Cancellable {
+        void cancel();
+    }
+
+    /**
+     * @return a monotonic time in milliseconds.
+     */
+    long now();
+
+    Cancellable schedule(Runnable task, long delayMillis);
+}
@@ -0,0 +1,87 @@
+package com.blescent.protocol;
+
+/**
+ * Settings frames for one device, built into a few reused arrays. Settings change with
+ * every slider step, so unlike play frames they are rarely sent twice; instead a frame is
+ * rewritten in place once no command holds it any more. A frame is held from
+ * {@link #acquire} until {@link #release} and must not be modified in between.
+ * <p>
+ * Sending the same settings again while a frame holding them is still out shares that
+ * frame. Only when every array is held does a new frame get allocated, outside the pool.
+ */
+public class SettingsFramePool {
+    private static final int SIZE = 4;
+
+    private final byte[][] frames = new byte[SIZE][];
+    private final int[] holders = new int[SIZE];
+    private final byte[] scratch = new byte[FrameEncoder.settingsFrameLength(true)];
+    private long hits;
+    private long misses;
+
+    /**
+     * @param extended whether to include the auto-play fields (firmware 0x26 and later).
+     */
+    public synchronized byte[] acquire(int fanSpeedPercentage, boolean isTimeoutOn, int timeoutMinutes,
+                                       boolean isAutoPlayOn, int autoPlaySeconds, boolean extended) {
+        int length = FrameEncoder.writeSettings(fanSpeedPercentage, isTimeoutOn, timeoutMinutes,
+                isAutoPlayOn, autoPlaySeconds, extended, scratch, 0);
+        int free = -1;
+        for (int slot = 0; slot < SIZE; slot++) {
+            byte[] frame = frames[slot];
+            if (frame != null && holders[slot] > 0 && holds(frame, length)) {
+                hits++;
+                holders[slot]++;
+                return frame;
+            }
+            // Prefer a free array of the right length, so it needn't be replaced.
+            if (holders[slot] == 0 && (free < 0 || (frame != null && frame.length == length))) {
+                free = slot;
+            }
+        }
+        misses++;
+        if (free < 0) {
+            byte[] frame = new byte[length];
+            System.arraycopy(scratch, 0, frame, 0, length);
+            return frame;
+        }
+        if (frames[free] == null || frames[free].length != length) {
+            frames[free] = new byte[length];
+        }
+        System.arraycopy(scratch, 0, frames[free], 0, length);
+        holders[free] = 1;
+        return frames[free];
+    }
+
+    /**
+     * Hands back a frame from {@link #acquire} once the command sending it has finished.
+     * Frames the pool didn't hand out are ignored.
+     */
+    public synchronized void release(byte[] frame) {
+        for (int slot = 0; slot < SIZE; slot++) {
+            if (frames[slot] == frame && holders[slot] > 0) {
+                holders[slot]--;
+                return;
+            }
+        }
+    }
+
+    private boolean holds(byte[] frame, int length) {
+        if (frame.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (frame[i] != scratch[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
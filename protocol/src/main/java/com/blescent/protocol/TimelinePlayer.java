@@ -0,0 +1,216 @@
+package com.blescent.protocol;
+
+import java.util.List;
+
+/**
+ * Plays a {@link ScentTimeline} against the scheduler's monotonic clock. Every frame is
+ * encoded, and its {@link Command} built, when the player is created, so dispatching a cue
+ * only hands a ready command to the {@link Sink}.
+ * <p>
+ * Each cue is dispatched at its offset from the start minus a lead time, the estimated
+ * time from dispatch until the device has the frame. Dispatch times are always worked out
+ * from the start, never from the previous cue, so timer lateness doesn't add up over a long
+ * show. When a cue is acknowledged, the time the device got it is estimated as halfway
+ * through its round trip; the difference from its scheduled time is its skew, which is
+ * reported and partly folded into the lead time for the cues that follow.
+ * <p>
+ * All callbacks, and the sink, run on the scheduler's thread.
+ */
+public class TimelinePlayer {
+
+    /**
+     * Sends a command; its future must be completed when the command completes or fails.
+     */
+    public interface Sink {
+        void send(Command command);
+    }
+
+    public interface Listener {
+        /**
+         * Called when a cue is acknowledged, or for legacy firmware written.
+         *
+         * @param skewMillis estimated time the device got the cue minus the time it was
+         *                   scheduled for; positive when late.
+         */
+        void onCueDelivered(int index, ScentTimeline.Cue cue, long skewMillis);
+
+        /**
+         * Called when a cue could not be delivered, including a play that a later stop
+         * dropped before it was sent.
+         */
+        void onCueFailed(int index, ScentTimeline.Cue cue, CommandException error);
+
+        /**
+         * Called once every cue has been delivered or has failed. Not called after
+         * {@link #cancel()}.
+         */
+        void onTimelineFinished();
+    }
+
+    // Share of each cue's skew added to the lead time.
+    private static final double LEAD_GAIN = 0.25;
+    public static final long MAX_LEAD = 1000;
+
+    private final Scheduler scheduler;
+    private final Sink sink;
+    private final Listener listener;
+    private final ScentTimeline.Cue[] cues;
+    private final Command[] commands;
+    private double lead;
+    private long startTime;
+    private int next;
+    private int outstanding;
+    private boolean started;
+    private boolean cancelled;
+    private boolean finished;
+    private Scheduler.Cancellable pendingDispatch;
+
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TimelinePlayer.this) {
+                pendingDispatch = null;
+                dispatchDue();
+            }
+        }
+    };
+
+    /**
+     * @param legacy      whether to encode frames for firmware older than 0x20.
+     * @param initialLead the lead time to start with, normally
+     *                    {@link #estimateLead(CommandMetrics.Snapshot, boolean)}.
+     */
+    public TimelinePlayer(ScentTimeline timeline, boolean legacy, long initialLead,
+                          Scheduler scheduler, Sink sink, Listener listener) {
+        this.scheduler = scheduler;
+        this.sink = sink;
+        this.listener = listener;
+        lead = clampLead(initialLead);
+        List<ScentTimeline.Cue> list = timeline.getCues();
+        cues = list.toArray(new ScentTimeline.Cue[list.size()]);
+        commands = new Command[cues.length];
+        for (int i = 0; i < cues.length; i++) {
+            commands[i] = encode(cues[i], legacy);
+        }
+    }
+
+    private static Command encode(ScentTimeline.Cue cue, boolean legacy) {
+        if (cue.isPlay()) {
+            return legacy
+                    ? new Command(FrameEncoder.legacyPlayScent(cue.getDuration(), cue.getIntensity(), cue.getScentCode()), false)
+                    : new Command(FrameEncoder.playScent(cue.getDuration(), cue.getIntensity(), cue.getScentCode()), true);
+        }
+        return legacy
+                ? new Command(FrameEncoder.legacyStopScent(), false)
+                : new Command(FrameEncoder.packEmpty(Opcodes.STOP_SCENT), true);
+    }
+
+    /**
+     * @return half the smoothed round trip of play commands, or 0 before any has been
+     * measured.
+     */
+    public static long estimateLead(CommandMetrics.Snapshot metrics, boolean legacy) {
+        RttEstimator.Estimate estimate = metrics.getRoundTripEstimate(legacy ? Command.NO_OPCODE : Opcodes.PLAY_SCENT);
+        return Math.round(estimate.getSmoothedRoundTrip() / 2);
+    }
+
+    private static double clampLead(double lead) {
+        return Math.max(0, Math.min(MAX_LEAD, lead));
+    }
+
+    /**
+     * Starts playing with the show already {@code position} milliseconds in; cues before
+     * that are skipped. A player can only be started once.
+     */
+    public synchronized void start(long position) {
+        if (started) {
+            throw new IllegalStateException("Already started");
+        }
+        started = true;
+        startTime = scheduler.now() - position;
+        while (next < cues.length && cues[next].getOffset() < position) {
+            next++;
+        }
+        dispatchDue();
+    }
+
+    /**
+     * Stops dispatching cues. Cues already sent still report their outcome.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (pendingDispatch != null) {
+            pendingDispatch.cancel();
+            pendingDispatch = null;
+        }
+    }
+
+    /**
+     * @return the current lead time in milliseconds.
+     */
+    public synchronized long getLead() {
+        return Math.round(lead);
+    }
+
+    /**
+     * @return the start of the show on the scheduler's clock.
+     */
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    private void dispatchDue() {
+        long now = scheduler.now();
+        while (next < cues.length && !cancelled) {
+            long due = startTime + cues[next].getOffset() - Math.round(lead);
+            if (due > now) {
+                pendingDispatch = scheduler.schedule(dispatchTask, due - now);
+                return;
+            }
+            dispatch(next++);
+        }
+        finishIfDone();
+    }
+
+    private void dispatch(final int index) {
+        final Command command = commands[index];
+        CommandFuture<Object> future = new CommandFuture<>();
+        command.setFuture(future);
+        outstanding++;
+        future.addCallback(new CommandFuture.Callback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                onDelivered(index, command);
+            }
+
+            @Override
+            public void onFailure(CommandException error) {
+                onFailed(index, error);
+            }
+        });
+        sink.send(command);
+    }
+
+    private synchronized void onDelivered(int index, Command command) {
+        outstanding--;
+        long now = scheduler.now();
+        long arrival = command.sendTime + (now - command.sendTime) / 2;
+        long skew = arrival - (startTime + cues[index].getOffset());
+        lead = clampLead(lead + LEAD_GAIN * skew);
+        listener.onCueDelivered(index, cues[index], skew);
+        finishIfDone();
+    }
+
+    private synchronized void onFailed(int index, CommandException error) {
+        outstanding--;
+        listener.onCueFailed(index, cues[index], error);
+        finishIfDone();
+    }
+
+    private void finishIfDone() {
+        if (!cancelled && !finished && next == cues.length && outstanding == 0) {
+            finished = true;
+            listener.onTimelineFinished();
+        }
+    }
+}
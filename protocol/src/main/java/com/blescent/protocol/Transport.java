@@ -0,0 +1,16 @@
+package com.blescent.protocol;
+
+/**
+ * The link a {@link CommandEngine} writes frames to. Implementations report the end of each
+ * write through {@link CommandEngine#onWriteComplete(boolean)}.
+ */
+public interface Transport {
+
+    /**
+     * Starts writing a frame to the peripheral.
+     *
+     * @param withResponse false to use a write-without-response, for frames sent pipelined.
+     * @return false if the write could not be started.
+     */
+    boolean write(byte[] frame, int offset, int length, boolean withResponse);
+}
@@ -0,0 +1,79 @@
+package com.blescent.protocol;
+
+/**
+ * One entry of an offline analytics dump: a scent the device played while no phone was
+ * connected.
+ * <p>
+ * Each record is {@link #LENGTH} bytes, little-endian: the start time as a uint32 of seconds
+ * since the Unix epoch by the device clock, the duration in seconds as a uint16, the
+ * intensity and the scent slot. This is the layout the decoders assume; it is only read and
+ * written here so it can be adjusted in one place.
+ */
+public final class UsageRecord {
+    public static final int LENGTH = 8;
+    private static final long SECONDS_PER_DAY = 86400;
+
+    private final long startTime;
+    private final int duration;
+    private final int intensity;
+    private final int slot;
+
+    public UsageRecord(long startTime, int duration, int intensity, int slot) {
+        this.startTime = startTime;
+        this.duration = duration;
+        this.intensity = intensity;
+        this.slot = slot;
+    }
+
+    static UsageRecord decode(byte[] bytes, int offset) {
+        long startTime = (bytes[offset] & 0xffL)
+                | (bytes[offset + 1] & 0xffL) << 8
+                | (bytes[offset + 2] & 0xffL) << 16
+                | (bytes[offset + 3] & 0xffL) << 24;
+        int duration = (bytes[offset + 4] & 0xff) | (bytes[offset + 5] & 0xff) << 8;
+        return new UsageRecord(startTime, duration, bytes[offset + 6] & 0xff, bytes[offset + 7] & 0xff);
+    }
+
+    /**
+     * Writes the record's {@link #LENGTH} bytes at {@code offset}.
+     */
+    public void encode(byte[] bytes, int offset) {
+        bytes[offset] = (byte) startTime;
+        bytes[offset + 1] = (byte) (startTime >> 8);
+        bytes[offset + 2] = (byte) (startTime >> 16);
+        bytes[offset + 3] = (byte) (startTime >> 24);
+        bytes[offset + 4] = (byte) duration;
+        bytes[offset + 5] = (byte) (duration >> 8);
+        bytes[offset + 6] = (byte) intensity;
+        bytes[offset + 7] = (byte) slot;
+    }
+
+    /**
+     * @return seconds since the Unix epoch, by the device clock.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return the UTC day the record started on, as days since the Unix epoch.
+     */
+    public long getDay() {
+        return startTime / SECONDS_PER_DAY;
+    }
+
+    /**
+     * @return the duration in seconds.
+     */
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getIntensity() {
+        return intensity;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+}
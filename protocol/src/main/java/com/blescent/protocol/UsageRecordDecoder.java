@@ -0,0 +1,70 @@
+package com.blescent.protocol;
+
+/**
+ * Turns offline analytics bytes into {@link UsageRecord}s as they are fed, in chunks of any
+ * size. A record split between two chunks is completed by the second one.
+ */
+public class UsageRecordDecoder {
+
+    public interface Listener {
+        void onRecord(UsageRecord record);
+    }
+
+    private final Listener listener;
+    private final byte[] partial = new byte[UsageRecord.LENGTH];
+    private int partialLength;
+    private int recordCount;
+
+    public UsageRecordDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        if (partialLength > 0) {
+            int n = Math.min(UsageRecord.LENGTH - partialLength, length);
+            System.arraycopy(bytes, offset, partial, partialLength, n);
+            partialLength += n;
+            offset += n;
+            if (partialLength < UsageRecord.LENGTH) {
+                return;
+            }
+            emit(partial, 0);
+            partialLength = 0;
+        }
+        while (end - offset >= UsageRecord.LENGTH) {
+            emit(bytes, offset);
+            offset += UsageRecord.LENGTH;
+        }
+        partialLength = end - offset;
+        System.arraycopy(bytes, offset, partial, 0, partialLength);
+    }
+
+    /**
+     * Feeds the payload of an offline analytics response.
+     */
+    public void feed(Frame frame) {
+        feed(frame.getBuffer(), frame.getPayloadOffset(), frame.getPayloadLength());
+    }
+
+    private void emit(byte[] bytes, int offset) {
+        recordCount++;
+        listener.onRecord(UsageRecord.decode(bytes, offset));
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of bytes of an incomplete record waiting for the rest.
+     */
+    public int getPendingByteCount() {
+        return partialLength;
+    }
+
+    public void reset() {
+        partialLength = 0;
+        recordCount = 0;
+    }
+}
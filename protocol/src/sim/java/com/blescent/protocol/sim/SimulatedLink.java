@@ -0,0 +1,165 @@
+package com.blescent.protocol.sim;
+
+import com.blescent.protocol.Command;
+import com.blescent.protocol.CommandEngine;
+import com.blescent.protocol.CommandException;
+import com.blescent.protocol.Frame;
+import com.blescent.protocol.FrameDecoder;
+import com.blescent.protocol.HeartbeatWatchdog;
+
+/**
+ * A {@link CommandEngine} connected to a {@link SimulatedPeripheral}, wired the way the
+ * Android library wires it to a GATT connection: heartbeats are stripped from the front of
+ * notifications and fed to a {@link HeartbeatWatchdog}, the rest goes through a
+ * {@link FrameDecoder}, and valid frames complete the current command. A timeout throws
+ * away whatever part of a response the decoder holds. A dead link gives up every pending
+ * command, or with automatic reconnection on, is dropped with the queue kept for
+ * {@link #reconnect()}.
+ */
+public class SimulatedLink implements SimulatedPeripheral.Central {
+    private static final byte HEARTBEAT = 'W';
+
+    private final VirtualScheduler scheduler;
+    private final SimulatedPeripheral peripheral;
+    private final CommandEngine engine;
+    private final HeartbeatWatchdog watchdog;
+    private final FrameDecoder responseDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(Frame frame) {
+            framesReceived++;
+            engine.onResponse(frame);
+        }
+
+        @Override
+        public void onDiscarded(int reason, int byteCount) {
+            engine.getMetrics().recordDiscardedBytes(byteCount);
+            if (reason == FrameDecoder.DISCARD_INVALID_CHECKSUM) {
+                engine.getMetrics().recordChecksumFailure();
+            }
+        }
+    });
+    private long framesReceived;
+    private boolean autoReconnect;
+
+    public SimulatedLink(VirtualScheduler scheduler, SimulatedPeripheral peripheral,
+                         final CommandEngine.Listener listener, final HeartbeatWatchdog.Listener watchdogListener) {
+        this.scheduler = scheduler;
+        this.peripheral = peripheral;
+        engine = new CommandEngine(peripheral, scheduler, new CommandEngine.Listener() {
+            @Override
+            public void onCommandCompleted(Command command) {
+                listener.onCommandCompleted(command);
+            }
+
+            @Override
+            public void onCommandGaveUp(Command command, CommandException.Reason reason) {
+                listener.onCommandGaveUp(command, reason);
+            }
+
+            @Override
+            public void onCommandSuperseded(Command command, Command by) {
+                listener.onCommandSuperseded(command, by);
+            }
+
+            @Override
+            public void onCommandTimedOut(Command command) {
+                responseDecoder.reset();
+                listener.onCommandTimedOut(command);
+            }
+        });
+        watchdog = new HeartbeatWatchdog(scheduler, new HeartbeatWatchdog.Listener() {
+            @Override
+            public void onLinkSuspect(long silenceMillis) {
+                watchdogListener.onLinkSuspect(silenceMillis);
+            }
+
+            @Override
+            public void onLinkDead(long silenceMillis) {
+                if (autoReconnect) {
+                    engine.suspend();
+                    peripheral.disconnect();
+                    watchdog.stop();
+                } else {
+                    engine.abortAll();
+                }
+                watchdogListener.onLinkDead(silenceMillis);
+            }
+
+            @Override
+            public void onLinkRecovered() {
+                watchdogListener.onLinkRecovered();
+            }
+        });
+    }
+
+    /**
+     * Connects the peripheral and opens the engine for commands.
+     */
+    public void connect() {
+        responseDecoder.reset();
+        peripheral.connect(this);
+        watchdog.start();
+        engine.setConnected(true);
+    }
+
+    /**
+     * Connects again after a dropout, sending the commands kept over it.
+     */
+    public void reconnect() {
+        responseDecoder.reset();
+        peripheral.connect(this);
+        watchdog.start();
+        engine.resume();
+    }
+
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public void disconnect() {
+        peripheral.disconnect();
+        watchdog.stop();
+        engine.setConnected(false);
+    }
+
+    @Override
+    public void onWriteComplete(boolean success) {
+        engine.onWriteComplete(success);
+    }
+
+    @Override
+    public void onNotification(byte[] data) {
+        int firstNonHeartbeatByte = 0;
+        while (firstNonHeartbeatByte < data.length && data[firstNonHeartbeatByte] == HEARTBEAT) {
+            firstNonHeartbeatByte++;
+        }
+        if (firstNonHeartbeatByte > 0) {
+            engine.getMetrics().recordHeartbeat(scheduler.now());
+            watchdog.onHeartbeat();
+        }
+        int length = data.length - firstNonHeartbeatByte;
+        if (length > 0 && engine.isAwaitingResponse()) {
+            responseDecoder.feed(data, firstNonHeartbeatByte, length);
+        }
+    }
+
+    public VirtualScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public SimulatedPeripheral getPeripheral() {
+        return peripheral;
+    }
+
+    public CommandEngine getEngine() {
+        return engine;
+    }
+
+    public HeartbeatWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+}
@@ -0,0 +1,461 @@
+package com.blescent.protocol.sim;
+
+import com.blescent.protocol.Checksum;
+import com.blescent.protocol.Frame;
+import com.blescent.protocol.FrameDecoder;
+import com.blescent.protocol.Opcodes;
+import com.blescent.protocol.Scheduler;
+import com.blescent.protocol.Transport;
+import com.blescent.protocol.UsageRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A diffuser running framed firmware, simulated on a {@link Scheduler}. Written bytes are
+ * reassembled into 'V','C' command frames and answered the way the firmware answers them;
+ * replies are split into notifications, and 'W' heartbeats go out on their own between them
+ * or, with {@link #setReplyHeartbeatPrefix(int)}, also at the front of replies.
+ * <p>
+ * Link conditions apply to every chunk in both directions: a write or notification takes the
+ * configured latency plus jitter, and may be lost or have one byte corrupted. Chunks keep
+ * their order, as they do over a real connection. Everything random comes from the
+ * {@link Random} given to the constructor, so a seeded run on a {@link VirtualScheduler} is
+ * exactly repeatable.
+ */
+public class SimulatedPeripheral implements Transport {
+
+    /**
+     * The phone side of the connection.
+     */
+    public interface Central {
+        /**
+         * Called when a write started by {@link #write(byte[], int, int, boolean)} completed.
+         */
+        void onWriteComplete(boolean success);
+
+        /**
+         * Called with each notification the peripheral sends.
+         */
+        void onNotification(byte[] data);
+    }
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_UNKNOWN_OPCODE = 1;
+    public static final byte STATE_IDLE = 0;
+    public static final byte STATE_PLAYING = 1;
+
+    public static final byte DEFAULT_FIRMWARE_REVISION = 0x26;
+    public static final int DEFAULT_NOTIFICATION_LENGTH = 20;
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 1000;
+    private static final byte HEARTBEAT = 'W';
+    // Silence after which the firmware drops a partly received command, so a corrupted length
+    // doesn't swallow the commands that follow.
+    private static final long FRAME_TIMEOUT = 500;
+    // Raw battery reading for a full battery; see DeviceStatus#batteryPercentage(int).
+    private static final int FULL_BATTERY = 0xC8;
+
+    private final Scheduler scheduler;
+    private final Random random;
+    private Central central;
+    private final FrameDecoder commandDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(Frame frame) {
+            onCommand(frame);
+        }
+
+        @Override
+        public void onDiscarded(int reason, int byteCount) {
+            bytesDiscarded += byteCount;
+        }
+    });
+
+    private byte firmwareRevision = DEFAULT_FIRMWARE_REVISION;
+    private long latency;
+    private long latencyJitter;
+    private long processingTime;
+    private int notificationLength = DEFAULT_NOTIFICATION_LENGTH;
+    private int replyHeartbeatPrefix;
+    private double lossRate;
+    private double corruptionRate;
+    private long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private boolean connected;
+    private Scheduler.Cancellable heartbeatTask;
+    // Time the last chunk in each direction arrives, so later chunks never overtake it.
+    private long lastInboundArrival;
+    private long lastOutboundArrival;
+    private long lastChunkReceived;
+
+    private byte state = STATE_IDLE;
+    private int battery = FULL_BATTERY;
+    private byte[] track = new byte[0];
+    private byte[] rfidTag;
+    private final List<UsageRecord> usageRecords = new ArrayList<>();
+    // Device clock at scheduler time 0, in seconds since the Unix epoch.
+    private long clockOffset;
+    private boolean recordingUsage = true;
+
+    private final long[] commandsReceived = new long[Opcodes.COUNT];
+    private long chunksLost;
+    private long chunksCorrupted;
+    private long bytesDiscarded;
+    private long notificationsSent;
+
+    public SimulatedPeripheral(Scheduler scheduler, Random random) {
+        this.scheduler = scheduler;
+        this.random = random;
+        setRfidTag((byte) 1, (byte) 1, (byte) 1, (short) 1, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+    }
+
+    /**
+     * Connects the peripheral to a central and starts its heartbeats.
+     */
+    public synchronized void connect(Central central) {
+        this.central = central;
+        connected = true;
+        lastInboundArrival = scheduler.now();
+        lastOutboundArrival = scheduler.now();
+        commandDecoder.reset();
+        scheduleHeartbeat();
+    }
+
+    /**
+     * Drops the connection. Chunks already in flight are lost.
+     */
+    public synchronized void disconnect() {
+        connected = false;
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel();
+            heartbeatTask = null;
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    public synchronized void setFirmwareRevision(byte firmwareRevision) {
+        this.firmwareRevision = firmwareRevision;
+    }
+
+    /**
+     * Sets the one-way delay of every chunk: {@code latency} plus a uniformly random extra
+     * of up to {@code jitter}.
+     */
+    public synchronized void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.latencyJitter = jitter;
+    }
+
+    /**
+     * Sets how long the firmware takes to act on a command before it starts replying.
+     */
+    public synchronized void setProcessingTime(long processingTime) {
+        this.processingTime = processingTime;
+    }
+
+    /**
+     * Sets the most bytes a notification carries; longer replies are split.
+     */
+    public synchronized void setNotificationLength(int notificationLength) {
+        this.notificationLength = notificationLength;
+    }
+
+    /**
+     * Starts the first notification of every reply with {@code length} 'W' heartbeat bytes,
+     * as firmware that interleaves heartbeats with replies sends them. The heartbeats take
+     * room from the reply, so the notification is no longer than usual.
+     */
+    public synchronized void setReplyHeartbeatPrefix(int length) {
+        if (length < 0 || length >= notificationLength) {
+            throw new IllegalArgumentException("Invalid heartbeat prefix " + length);
+        }
+        this.replyHeartbeatPrefix = length;
+    }
+
+    /**
+     * Sets the chance that a chunk, in either direction, silently never arrives.
+     */
+    public synchronized void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Sets the chance that a chunk, in either direction, arrives with one byte changed.
+     */
+    public synchronized void setCorruptionRate(double corruptionRate) {
+        this.corruptionRate = corruptionRate;
+    }
+
+    /**
+     * @param heartbeatInterval the time between heartbeats, or 0 for none.
+     */
+    public synchronized void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+        if (connected) {
+            if (heartbeatTask != null) {
+                heartbeatTask.cancel();
+            }
+            scheduleHeartbeat();
+        }
+    }
+
+    /**
+     * @param batteryReading the raw reading the status reply carries, 0xAA..0xC8.
+     */
+    public synchronized void setBattery(int batteryReading) {
+        this.battery = batteryReading;
+    }
+
+    public synchronized void setRfidTag(byte valid, byte version, byte deviceType, short familyCode,
+                                        byte[] identifier) {
+        byte[] tag = new byte[7 + identifier.length];
+        tag[0] = valid;
+        tag[1] = version;
+        tag[2] = deviceType;
+        tag[3] = (byte) familyCode;
+        tag[4] = (byte) (familyCode >> 8);
+        tag[5] = (byte) identifier.length;
+        tag[6] = (byte) (identifier.length >> 8);
+        System.arraycopy(identifier, 0, tag, 7, identifier.length);
+        rfidTag = tag;
+    }
+
+    /**
+     * Sets the device clock, used to time-stamp the usage records plays leave behind.
+     */
+    public synchronized void setClock(long secondsSinceEpoch) {
+        clockOffset = secondsSinceEpoch - scheduler.now() / 1000;
+    }
+
+    /**
+     * @param recordingUsage whether plays are logged as offline analytics, as they are when the
+     *                       firmware believes no phone is listening.
+     */
+    public synchronized void setRecordingUsage(boolean recordingUsage) {
+        this.recordingUsage = recordingUsage;
+    }
+
+    public synchronized void addUsageRecord(UsageRecord record) {
+        usageRecords.add(record);
+    }
+
+    public synchronized List<UsageRecord> getUsageRecords() {
+        return new ArrayList<>(usageRecords);
+    }
+
+    public synchronized byte getState() {
+        return state;
+    }
+
+    public synchronized byte[] getTrack() {
+        return track.clone();
+    }
+
+    public synchronized long getCommandsReceived(int opcode) {
+        return commandsReceived[opcode];
+    }
+
+    public synchronized long getChunksLost() {
+        return chunksLost;
+    }
+
+    public synchronized long getChunksCorrupted() {
+        return chunksCorrupted;
+    }
+
+    /**
+     * @return bytes of written data the firmware could not make a command of.
+     */
+    public synchronized long getBytesDiscarded() {
+        return bytesDiscarded;
+    }
+
+    public synchronized long getNotificationsSent() {
+        return notificationsSent;
+    }
+
+    @Override
+    public synchronized boolean write(byte[] frame, int offset, int length, boolean withResponse) {
+        if (!connected) {
+            return false;
+        }
+        final byte[] chunk = damage(Arrays.copyOfRange(frame, offset, offset + length));
+        lastInboundArrival = Math.max(lastInboundArrival, scheduler.now() + nextLatency());
+        final Central target = central;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (chunk != null) {
+                    receive(chunk);
+                }
+                // The link layer acknowledges the write even when the firmware loses it.
+                if (isConnected()) {
+                    target.onWriteComplete(true);
+                }
+            }
+        }, lastInboundArrival - scheduler.now());
+        return true;
+    }
+
+    private synchronized void receive(byte[] chunk) {
+        if (connected) {
+            long now = scheduler.now();
+            if (now - lastChunkReceived > FRAME_TIMEOUT && commandDecoder.getBufferedByteCount() > 0) {
+                bytesDiscarded += commandDecoder.getBufferedByteCount();
+                commandDecoder.reset();
+            }
+            lastChunkReceived = now;
+            commandDecoder.feed(chunk);
+        }
+    }
+
+    private void onCommand(Frame frame) {
+        int opcode = frame.getOpcode();
+        byte[] reply;
+        byte status = STATUS_OK;
+        if (opcode < 0 || opcode >= Opcodes.COUNT) {
+            status = STATUS_UNKNOWN_OPCODE;
+            reply = new byte[0];
+        } else {
+            commandsReceived[opcode]++;
+            reply = execute(frame);
+        }
+        final byte[] response = response(status, (byte) opcode, reply);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                notifyCentral(response);
+            }
+        }, processingTime);
+    }
+
+    private byte[] execute(Frame frame) {
+        switch (frame.getOpcode()) {
+            case Opcodes.PLAY_SCENT:
+                state = STATE_PLAYING;
+                if (recordingUsage && frame.getPayloadLength() >= 3) {
+                    usageRecords.add(new UsageRecord(clockOffset + scheduler.now() / 1000,
+                            frame.getPayloadUInt16(1), frame.getPayloadByte(0) & 0xff, 0));
+                }
+                return new byte[0];
+            case Opcodes.STOP_SCENT:
+                state = STATE_IDLE;
+                return new byte[0];
+            case Opcodes.QUERY_STATUS:
+                return new byte[]{(byte) battery, state, (byte) (usageRecords.isEmpty() ? 0 : 1)};
+            case Opcodes.WRITE_TRACK:
+                track = frame.copyPayload();
+                return new byte[0];
+            case Opcodes.READ_TRACK:
+                return track.clone();
+            case Opcodes.QUERY_RFID:
+                return rfidTag.clone();
+            case Opcodes.QUERY_OFFLINE_ANALYTICS:
+                byte[] records = new byte[usageRecords.size() * UsageRecord.LENGTH];
+                for (int i = 0; i < usageRecords.size(); i++) {
+                    usageRecords.get(i).encode(records, i * UsageRecord.LENGTH);
+                }
+                return records;
+            case Opcodes.CLEAR_OFFLINE_ANALYTICS:
+                usageRecords.clear();
+                return new byte[0];
+            default:
+                // Timeout and settings only change behaviour the simulation doesn't model.
+                return new byte[0];
+        }
+    }
+
+    /**
+     * Builds a reply frame: 'V','C', firmware revision, status, opcode, little-endian payload
+     * length, payload and checksum.
+     */
+    private byte[] response(byte status, byte opcode, byte[] payload) {
+        byte[] frame = new byte[Frame.HEADER_LENGTH + payload.length + Frame.CHECKSUM_LENGTH];
+        frame[0] = 'V';
+        frame[1] = 'C';
+        frame[2] = firmwareRevision;
+        frame[3] = status;
+        frame[4] = opcode;
+        frame[5] = (byte) payload.length;
+        frame[6] = (byte) (payload.length >> 8);
+        System.arraycopy(payload, 0, frame, Frame.HEADER_LENGTH, payload.length);
+        frame[frame.length - 1] = Checksum.calculate(frame, 0, frame.length - 1);
+        return frame;
+    }
+
+    private synchronized void notifyCentral(byte[] data) {
+        int offset = 0;
+        if (replyHeartbeatPrefix > 0) {
+            int length = Math.min(data.length, notificationLength - replyHeartbeatPrefix);
+            byte[] first = new byte[replyHeartbeatPrefix + length];
+            Arrays.fill(first, 0, replyHeartbeatPrefix, HEARTBEAT);
+            System.arraycopy(data, 0, first, replyHeartbeatPrefix, length);
+            send(first);
+            offset = length;
+        }
+        for (; offset < data.length; offset += notificationLength) {
+            send(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + notificationLength)));
+        }
+    }
+
+    private void send(byte[] notification) {
+        if (!connected) {
+            return;
+        }
+        notificationsSent++;
+        final byte[] chunk = damage(notification);
+        lastOutboundArrival = Math.max(lastOutboundArrival, scheduler.now() + nextLatency());
+        if (chunk == null) {
+            return;
+        }
+        final Central target = central;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (isConnected()) {
+                    target.onNotification(chunk);
+                }
+            }
+        }, lastOutboundArrival - scheduler.now());
+    }
+
+    private void scheduleHeartbeat() {
+        if (heartbeatInterval <= 0) {
+            heartbeatTask = null;
+            return;
+        }
+        heartbeatTask = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedPeripheral.this) {
+                    if (connected) {
+                        send(new byte[]{HEARTBEAT});
+                        scheduleHeartbeat();
+                    }
+                }
+            }
+        }, heartbeatInterval);
+    }
+
+    private long nextLatency() {
+        return latency + (latencyJitter > 0 ? (long) (random.nextDouble() * (latencyJitter + 1)) : 0);
+    }
+
+    /**
+     * @return the chunk, possibly with one byte changed, or null if it is lost.
+     */
+    private byte[] damage(byte[] chunk) {
+        if (lossRate > 0 && random.nextDouble() < lossRate) {
+            chunksLost++;
+            return null;
+        }
+        if (corruptionRate > 0 && random.nextDouble() < corruptionRate) {
+            chunksCorrupted++;
+            chunk[random.nextInt(chunk.length)] ^= (byte) (1 + random.nextInt(255));
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,124 @@
+package com.blescent.protocol.sim;
+
+import com.blescent.protocol.Scheduler;
+
+import java.util.PriorityQueue;
+
+/**
+ * {@link Scheduler} on a virtual clock that only moves when told to. Tasks run on the thread
+ * that advances the clock, in order of due time and then of scheduling, so a simulation
+ * driven from one thread is exactly repeatable and runs as fast as the CPU allows.
+ */
+public class VirtualScheduler implements Scheduler {
+
+    private static final class Task implements Comparable<Task>, Cancellable {
+        final Runnable runnable;
+        final long dueTime;
+        final long sequence;
+        boolean cancelled;
+
+        Task(Runnable runnable, long dueTime, long sequence) {
+            this.runnable = runnable;
+            this.dueTime = dueTime;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueTime != other.dueTime) {
+                return dueTime < other.dueTime ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+    private long tasksRun;
+
+    @Override
+    public synchronized long now() {
+        return now;
+    }
+
+    @Override
+    public synchronized Cancellable schedule(Runnable runnable, long delayMillis) {
+        Task task = new Task(runnable, now + Math.max(0, delayMillis), sequence++);
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Runs the next task due at or before {@code until}, moving the clock to its due time.
+     *
+     * @return false if there was no such task.
+     */
+    public boolean runNext(long until) {
+        Task task;
+        synchronized (this) {
+            do {
+                task = tasks.peek();
+                if (task == null || task.dueTime > until) {
+                    return false;
+                }
+                tasks.remove();
+            } while (task.cancelled);
+            now = task.dueTime;
+            tasksRun++;
+        }
+        task.runnable.run();
+        return true;
+    }
+
+    /**
+     * Runs every task due within the next {@code millis}, then leaves the clock at the end of
+     * that time.
+     */
+    public void advanceBy(long millis) {
+        advanceTo(now() + millis);
+    }
+
+    public void advanceTo(long time) {
+        while (runNext(time)) {
+            // Tasks may schedule more tasks inside the window; they run too.
+        }
+        synchronized (this) {
+            if (time > now) {
+                now = time;
+            }
+        }
+    }
+
+    /**
+     * Runs tasks until none are left or the clock passes {@code until}; periodic tasks such as
+     * heartbeats keep the queue from ever running dry on its own.
+     *
+     * @return whether the queue ran dry.
+     */
+    public boolean runUntilIdle(long until) {
+        while (runNext(until)) {
+            // Keep going.
+        }
+        return getPendingCount() == 0;
+    }
+
+    public synchronized int getPendingCount() {
+        int pending = 0;
+        for (Task task : tasks) {
+            if (!task.cancelled) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    public synchronized long getTasksRun() {
+        return tasksRun;
+    }
+}
@@ -0,0 +1,170 @@
+package com.blescent.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnalyticsLogTest {
+
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final long DAY = 86400;
+    private static final long MONDAY = 17000 * DAY;
+
+    private File directory;
+    private AnalyticsLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("analytics", "");
+        assertTrue(directory.delete());
+        log = new AnalyticsLog(directory);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private File file() {
+        return new File(directory, "00-11-22-AA-BB-CC.usage");
+    }
+
+    private static UsageRecord record(long startTime, int duration) {
+        return new UsageRecord(startTime, duration, 50, 1);
+    }
+
+    private void truncateBy(int bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file(), "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void readsBackAppendedRecords() throws IOException {
+        log.append(ADDRESS, Arrays.asList(record(MONDAY, 30), record(MONDAY + 60, 45)));
+        log.append(ADDRESS, Collections.singletonList(record(MONDAY + 120, 10)));
+
+        List<UsageRecord> records = log.read(ADDRESS);
+        assertEquals(3, records.size());
+        assertEquals(MONDAY + 60, records.get(1).getStartTime());
+        assertEquals(10, records.get(2).getDuration());
+        assertEquals(Collections.singletonList(ADDRESS), log.getDevices());
+    }
+
+    @Test
+    public void emptyAppendCreatesNothing() throws IOException {
+        log.append(ADDRESS, Collections.<UsageRecord>emptyList());
+
+        assertFalse(file().exists());
+        assertTrue(log.read(ADDRESS).isEmpty());
+    }
+
+    @Test
+    public void ignoresTruncatedTail() throws IOException {
+        log.append(ADDRESS, Arrays.asList(record(MONDAY, 30), record(MONDAY + 60, 45)));
+        truncateBy(3);
+
+        List<UsageRecord> records = log.read(ADDRESS);
+        assertEquals(1, records.size());
+        assertEquals(MONDAY, records.get(0).getStartTime());
+    }
+
+    @Test
+    public void appendRepairsTruncatedTail() throws IOException {
+        log.append(ADDRESS, Arrays.asList(record(MONDAY, 30), record(MONDAY + 60, 45)));
+        truncateBy(3);
+
+        // The torn record is cut off so the new one stays aligned.
+        log.append(ADDRESS, Collections.singletonList(record(MONDAY + 120, 10)));
+        List<UsageRecord> records = log.read(ADDRESS);
+        assertEquals(2, records.size());
+        assertEquals(MONDAY + 120, records.get(1).getStartTime());
+        assertEquals(10, records.get(1).getDuration());
+    }
+
+    @Test
+    public void appendRepairsPartialHeader() throws IOException {
+        assertTrue(directory.mkdirs());
+        FileOutputStream out = new FileOutputStream(file());
+        try {
+            out.write(new byte[]{'B', 'S'});
+        } finally {
+            out.close();
+        }
+        assertTrue(log.read(ADDRESS).isEmpty());
+
+        log.append(ADDRESS, Collections.singletonList(record(MONDAY, 30)));
+        assertEquals(1, log.read(ADDRESS).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileWithoutHeader() throws IOException {
+        assertTrue(directory.mkdirs());
+        FileOutputStream out = new FileOutputStream(file());
+        try {
+            out.write(new byte[2 * UsageRecord.LENGTH]);
+        } finally {
+            out.close();
+        }
+        log.read(ADDRESS);
+    }
+
+    @Test
+    public void rollsUpUsagePerDay() throws IOException {
+        log.append(ADDRESS, Arrays.asList(record(MONDAY + 10, 30), record(MONDAY + DAY - 1, 20),
+                record(MONDAY + DAY, 15)));
+
+        List<DailyUsage> days = log.getDailyUsage(ADDRESS);
+        assertEquals(2, days.size());
+        assertEquals(MONDAY / DAY, days.get(0).getDay());
+        assertEquals(2, days.get(0).getPlayCount());
+        assertEquals(50, days.get(0).getTotalDuration());
+        assertEquals(1, days.get(1).getPlayCount());
+    }
+
+    @Test
+    public void appendUpdatesLoadedRollups() throws IOException {
+        log.append(ADDRESS, Collections.singletonList(record(MONDAY, 30)));
+        List<DailyUsage> before = log.getDailyUsage(ADDRESS);
+
+        log.append(ADDRESS, Arrays.asList(record(MONDAY + 60, 20), record(MONDAY + 2 * DAY, 5)));
+        List<DailyUsage> after = log.getDailyUsage(ADDRESS);
+        assertEquals(2, after.size());
+        assertEquals(2, after.get(0).getPlayCount());
+        assertEquals(50, after.get(0).getTotalDuration());
+        assertEquals(MONDAY / DAY + 2, after.get(1).getDay());
+        // Callers get copies, not the live totals.
+        assertEquals(1, before.get(0).getPlayCount());
+    }
+
+    @Test
+    public void deleteForgetsDevice() throws IOException {
+        log.append(ADDRESS, Collections.singletonList(record(MONDAY, 30)));
+        log.getDailyUsage(ADDRESS);
+
+        assertTrue(log.delete(ADDRESS));
+        assertTrue(log.getDevices().isEmpty());
+        assertTrue(log.getDailyUsage(ADDRESS).isEmpty());
+    }
+}
@@ -0,0 +1,41 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChecksumTest {
+
+    @Test
+    public void frameAddsUpToZero() {
+        byte[] frame = FrameEncoder.pack(Opcodes.WRITE_TRACK, new byte[]{1, 2, 3, (byte) 0xFF});
+        byte sum = 0;
+        for (byte b : frame) {
+            sum += b;
+        }
+        assertEquals(0, sum);
+        assertTrue(Checksum.verify(frame, 0, frame.length));
+    }
+
+    @Test
+    public void usesOnlyTheGivenRange() {
+        byte[] bytes = {9, 'V', 'C', 1, 1, 2, 0, 0, 9};
+        bytes[7] = Checksum.calculate(bytes, 1, 6);
+        assertTrue(Checksum.verify(bytes, 1, 7));
+        assertFalse(Checksum.verify(bytes, 0, 8));
+    }
+
+    @Test
+    public void detectsChangedByte() {
+        byte[] frame = FrameEncoder.pack(Opcodes.WRITE_SETTINGS, new byte[]{50, 1, 30, 0});
+        frame[Frame.HEADER_LENGTH] ^= 0x10;
+        assertFalse(Checksum.verify(frame, 0, frame.length));
+    }
+
+    @Test
+    public void emptyRangeChecksumIsZero() {
+        assertEquals(0, Checksum.calculate(new byte[0], 0, 0));
+    }
+}
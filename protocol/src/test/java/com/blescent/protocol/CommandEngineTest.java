@@ -0,0 +1,429 @@
+package com.blescent.protocol;
+
+import com.blescent.protocol.sim.SimulatedLink;
+import com.blescent.protocol.sim.SimulatedPeripheral;
+import com.blescent.protocol.sim.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CommandEngineTest {
+
+    private static final byte[] STATUS = FrameEncoder.packEmpty(Opcodes.QUERY_STATUS);
+    private static final byte[] RFID = FrameEncoder.packEmpty(Opcodes.QUERY_RFID);
+    private static final byte[] STOP = FrameEncoder.packEmpty(Opcodes.STOP_SCENT);
+
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    // Every chunk handed to the transport, in order.
+    private final List<byte[]> writes = new ArrayList<>();
+    private final List<Command> completed = new ArrayList<>();
+    private final List<Command> gaveUp = new ArrayList<>();
+    private final List<CommandException.Reason> reasons = new ArrayList<>();
+    private final List<Command> superseded = new ArrayList<>();
+    private final List<Command> timedOut = new ArrayList<>();
+    private int writesToRefuse;
+    private CommandEngine engine;
+
+    private final CommandEngine.Listener listener = new CommandEngine.Listener() {
+        @Override
+        public void onCommandCompleted(Command command) {
+            completed.add(command);
+        }
+
+        @Override
+        public void onCommandGaveUp(Command command, CommandException.Reason reason) {
+            gaveUp.add(command);
+            reasons.add(reason);
+        }
+
+        @Override
+        public void onCommandSuperseded(Command command, Command by) {
+            superseded.add(command);
+        }
+
+        @Override
+        public void onCommandTimedOut(Command command) {
+            timedOut.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        engine = new CommandEngine(new Transport() {
+            @Override
+            public boolean write(byte[] frame, int offset, int length, boolean withResponse) {
+                if (writesToRefuse > 0) {
+                    writesToRefuse--;
+                    return false;
+                }
+                byte[] chunk = new byte[length];
+                System.arraycopy(frame, offset, chunk, 0, length);
+                writes.add(chunk);
+                return true;
+            }
+        }, scheduler, listener, new Random(1));
+        engine.setConnected(true);
+    }
+
+    private Command query(byte[] frame) {
+        Command command = new Command(frame, true);
+        engine.enqueue(command);
+        return command;
+    }
+
+    private Command play(int duration) {
+        Command command = new Command(FrameEncoder.playScent(duration, 50, "A1"), false);
+        engine.enqueue(command);
+        return command;
+    }
+
+    private void respond(byte opcode) {
+        byte[] bytes = FrameEncoder.packEmpty(opcode);
+        Frame frame = new Frame();
+        frame.wrap(bytes, 0, bytes.length);
+        engine.onResponse(frame);
+    }
+
+    private void writeCompletes() {
+        engine.onWriteComplete(true);
+    }
+    private SimulatedLink link(SimulatedPeripheral peripheral, final List<Long> deadAfter) {
+        SimulatedLink link = new SimulatedLink(scheduler, peripheral, listener, new HeartbeatWatchdog.Listener() {
+            @Override
+            public void onLinkSuspect(long silenceMillis) {
+            }
+
+            @Override
+            public void onLinkDead(long silenceMillis) {
+                deadAfter.add(scheduler.now());
+            }
+
+            @Override
+            public void onLinkRecovered() {
+            }
+        });
+        link.connect();
+        // Long enough for the watchdog to learn the heartbeat interval.
+        scheduler.advanceBy(5000);
+        return link;
+    }
+
+    @Test
+    public void sendsOneCommandAtATime() {
+        Command status = query(STATUS);
+        Command rfid = query(RFID);
+        assertEquals(1, writes.size());
+        assertArrayEquals(STATUS, writes.get(0));
+
+        writeCompletes();
+        assertEquals(1, writes.size());
+        respond(Opcodes.QUERY_STATUS);
+
+        assertEquals(1, completed.size());
+        assertSame(status, completed.get(0));
+        assertArrayEquals(RFID, writes.get(1));
+        writeCompletes();
+        respond(Opcodes.QUERY_RFID);
+        assertSame(rfid, completed.get(1));
+    }
+
+    @Test
+    public void ignoresResponseToAnotherOpcode() {
+        query(STATUS);
+        writeCompletes();
+        respond(Opcodes.QUERY_RFID);
+
+        assertTrue(completed.isEmpty());
+        assertEquals(1, engine.getInFlightCount());
+    }
+
+    @Test
+    public void writeOnlyCommandCompletesOnWrite() {
+        Command play = play(1000);
+        assertTrue(completed.isEmpty());
+
+        writeCompletes();
+        assertSame(play, completed.get(0));
+    }
+
+    @Test
+    public void higherPriorityGoesFirst() {
+        query(STATUS);
+        query(RFID);
+        Command stop = new Command(STOP, true);
+        engine.enqueue(stop);
+
+        writeCompletes();
+        respond(Opcodes.QUERY_STATUS);
+        assertArrayEquals(STOP, writes.get(1));
+    }
+
+    @Test
+    public void stopDropsPendingPlays() {
+        query(STATUS);
+        Command play = play(1000);
+        engine.enqueue(new Command(STOP, true));
+
+        assertEquals(1, superseded.size());
+        assertSame(play, superseded.get(0));
+    }
+
+    @Test
+    public void latestWinsReplacesPendingCommand() {
+        query(STATUS);
+        Command first = new Command(FrameEncoder.enableTimeout(true), true);
+        Command second = new Command(FrameEncoder.enableTimeout(false), true);
+        engine.enqueue(first);
+        engine.enqueue(second);
+
+        assertSame(first, superseded.get(0));
+        assertEquals(2, engine.getQueueDepth());
+        assertEquals(1, engine.getCommandsCoalesced());
+    }
+
+    @Test
+    public void identicalQueryIsCoalesced() {
+        query(RFID);
+        query(STATUS);
+        Command second = query(STATUS);
+
+        assertEquals(1, superseded.size());
+        assertSame(second, superseded.get(0));
+        assertEquals(2, engine.getQueueDepth());
+    }
+
+    @Test
+    public void queryIsNotCoalescedAcrossStateChange() {
+        Command stop = new Command(STOP, true, Command.PRIORITY_BACKGROUND);
+        query(RFID);
+        query(STATUS);
+        engine.enqueue(stop);
+        query(STATUS);
+
+        assertTrue(superseded.isEmpty());
+        assertEquals(4, engine.getQueueDepth());
+    }
+
+    @Test
+    public void pipelinesWriteOnlyCommandsUpToWindow() {
+        engine.setPipelineWindow(2);
+        engine.setCoalescing(false);
+        play(1000);
+        play(2000);
+        play(3000);
+        assertEquals(2, writes.size());
+        assertEquals(2, engine.getInFlightCount());
+
+        writeCompletes();
+        assertEquals(1, completed.size());
+        assertEquals(3, writes.size());
+        writeCompletes();
+        writeCompletes();
+        assertEquals(3, completed.size());
+    }
+
+    @Test
+    public void acknowledgedCommandWaitsForPipelinedWrites() {
+        engine.setPipelineWindow(4);
+        play(1000);
+        query(STATUS);
+        assertEquals(1, writes.size());
+
+        writeCompletes();
+        assertEquals(2, writes.size());
+        assertArrayEquals(STATUS, writes.get(1));
+    }
+
+    @Test
+    public void fragmentsLongFrames() {
+        byte[] track = new byte[45];
+        for (int i = 0; i < track.length; i++) {
+            track[i] = (byte) i;
+        }
+        byte[] frame = FrameEncoder.pack(Opcodes.WRITE_TRACK, track);
+        engine.enqueue(new Command(frame, true));
+        assertEquals(1, writes.size());
+
+        // The next chunk only goes out once the previous one has been written.
+        writeCompletes();
+        writeCompletes();
+        writeCompletes();
+        assertEquals(3, writes.size());
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (byte[] chunk : writes) {
+            assertTrue(chunk.length <= CommandEngine.DEFAULT_MAX_WRITE_LENGTH);
+            sent.write(chunk, 0, chunk.length);
+        }
+        assertArrayEquals(frame, sent.toByteArray());
+        assertEquals(1, engine.getFragmentedFramesWritten());
+
+        respond(Opcodes.WRITE_TRACK);
+        assertEquals(1, completed.size());
+    }
+
+    @Test
+    public void resendsOnTimeoutThenGivesUp() {
+        Command status = query(STATUS);
+        writeCompletes();
+
+        scheduler.advanceBy(60000);
+        assertEquals(1 + CommandEngine.DEFAULT_MAX_NUMBER_OF_RETRIES, writes.size());
+        assertEquals(1 + CommandEngine.DEFAULT_MAX_NUMBER_OF_RETRIES, timedOut.size());
+        assertSame(status, gaveUp.get(0));
+        assertEquals(CommandException.Reason.TIMED_OUT, reasons.get(0));
+    }
+
+    @Test
+    public void refusedSendIsRetriedWithoutCountingResend() {
+        writesToRefuse = 1;
+        Command status = query(STATUS);
+        assertTrue(writes.isEmpty());
+
+        scheduler.advanceBy(50);
+        assertEquals(1, writes.size());
+        assertEquals(0, status.getRetryCount());
+        assertTrue(timedOut.isEmpty());
+
+        writeCompletes();
+        respond(Opcodes.QUERY_STATUS);
+        assertSame(status, completed.get(0));
+    }
+
+    @Test
+    public void refusedWriteIsNotCounted() {
+        writesToRefuse = 1;
+        engine.enqueue(new Command(FrameEncoder.pack(Opcodes.WRITE_TRACK, new byte[45]), true));
+        assertEquals(0, engine.getFramesWritten());
+        assertEquals(0, engine.getFragmentedFramesWritten());
+
+        scheduler.advanceBy(50);
+        assertEquals(1, engine.getFramesWritten());
+        assertEquals(1, engine.getFragmentedFramesWritten());
+    }
+
+    @Test
+    public void failedWriteIsRepeatedAndNotCompleted() {
+        Command play = play(1000);
+        engine.onWriteComplete(false);
+        assertTrue(completed.isEmpty());
+
+        scheduler.advanceBy(50);
+        assertEquals(2, writes.size());
+        assertArrayEquals(writes.get(0), writes.get(1));
+
+        writeCompletes();
+        assertSame(play, completed.get(0));
+        assertEquals(0, play.getRetryCount());
+    }
+
+    @Test
+    public void refusedPipelinedWriteRecordsQueueWaitOnce() {
+        engine.setPipelineWindow(2);
+        writesToRefuse = 2;
+        play(1000);
+        scheduler.advanceBy(200);
+
+        assertEquals(1, writes.size());
+        assertEquals(1, engine.getMetricsSnapshot().getQueueWait().getCount());
+    }
+
+    @Test
+    public void failedPipelinedWriteIsGivenUp() {
+        engine.setPipelineWindow(2);
+        engine.setCoalescing(false);
+        Command first = play(1000);
+        Command second = play(2000);
+
+        engine.onWriteComplete(false);
+        assertSame(first, gaveUp.get(0));
+        assertEquals(CommandException.Reason.WRITE_FAILED, reasons.get(0));
+
+        writeCompletes();
+        assertSame(second, completed.get(0));
+    }
+
+    @Test
+    public void suspendKeepsQueueUntilResume() {
+        Command status = query(STATUS);
+        query(RFID);
+        engine.suspend();
+        assertEquals(2, engine.getQueueDepth());
+        assertEquals(0, engine.getInFlightCount());
+
+        engine.resume();
+        assertEquals(2, writes.size());
+        assertArrayEquals(STATUS, writes.get(1));
+        writeCompletes();
+        respond(Opcodes.QUERY_STATUS);
+        assertSame(status, completed.get(0));
+    }
+
+    @Test
+    public void abortAllGivesUpEverything() {
+        query(STATUS);
+        query(RFID);
+        engine.abortAll();
+
+        assertEquals(2, gaveUp.size());
+        assertEquals(CommandException.Reason.ABORTED, reasons.get(0));
+        assertEquals(0, engine.getQueueDepth());
+    }
+
+    @Test
+    public void deadLinkGivesUpPendingCommandsWhileStillConnected() {
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(scheduler, new Random(1));
+        List<Long> deadAfter = new ArrayList<>();
+        SimulatedLink link = link(peripheral, deadAfter);
+
+        // The peripheral stays connected but nothing gets through any more.
+        peripheral.setLossRate(1);
+        Command status = new Command(STATUS, true);
+        link.getEngine().enqueue(status);
+        scheduler.advanceBy(5000);
+
+        assertTrue(peripheral.isConnected());
+        assertEquals(1, deadAfter.size());
+        assertSame(status, gaveUp.get(0));
+        assertEquals(CommandException.Reason.ABORTED, reasons.get(0));
+        assertEquals(0, link.getEngine().getQueueDepth());
+        assertEquals(0, link.getEngine().getInFlightCount());
+    }
+
+    @Test
+    public void deadLinkKeepsPendingCommandsForReconnect() {
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(scheduler, new Random(1));
+        List<Long> deadAfter = new ArrayList<>();
+        SimulatedLink link = link(peripheral, deadAfter);
+        link.setAutoReconnect(true);
+
+        peripheral.setLossRate(1);
+        Command status = new Command(STATUS, true);
+        link.getEngine().enqueue(status);
+        scheduler.advanceBy(5000);
+
+        // The silent link is dropped, but the query waits for the next one.
+        assertEquals(1, deadAfter.size());
+        assertFalse(peripheral.isConnected());
+        assertTrue(gaveUp.isEmpty());
+        assertEquals(1, link.getEngine().getQueueDepth());
+
+        peripheral.setLossRate(0);
+        link.reconnect();
+        scheduler.advanceBy(1000);
+
+        assertSame(status, completed.get(0));
+        assertTrue(gaveUp.isEmpty());
+        assertEquals(0, link.getEngine().getQueueDepth());
+    }
+}
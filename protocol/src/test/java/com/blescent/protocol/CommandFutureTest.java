@@ -0,0 +1,152 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CommandFutureTest {
+
+    private static final CommandException TIMED_OUT =
+            new CommandException(CommandException.Reason.TIMED_OUT, "Timed out");
+
+    private final List<Object> results = new ArrayList<>();
+    private final List<CommandException> errors = new ArrayList<>();
+
+    private final CommandFuture.Callback<Object> callback = new CommandFuture.Callback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onFailure(CommandException error) {
+            errors.add(error);
+        }
+    };
+
+    @Test
+    public void setRunsCallbacksOnce() throws Exception {
+        CommandFuture<String> future = new CommandFuture<>();
+        future.addCallback(callback);
+        assertFalse(future.isDone());
+
+        assertTrue(future.set("reply"));
+        assertFalse(future.set("again"));
+        assertFalse(future.setException(TIMED_OUT));
+
+        assertEquals(1, results.size());
+        assertEquals("reply", results.get(0));
+        assertTrue(errors.isEmpty());
+        assertEquals("reply", future.get(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void callbackAddedAfterCompletionRunsStraightAway() {
+        CommandFuture.succeeded("reply").addCallback(callback);
+        CommandFuture.failed(TIMED_OUT).addCallback(callback);
+
+        assertEquals("reply", results.get(0));
+        assertSame(TIMED_OUT, errors.get(0));
+    }
+
+    @Test
+    public void failureIsThrownFromGet() throws Exception {
+        CommandFuture<String> future = new CommandFuture<>();
+        future.addCallback(callback);
+        assertTrue(future.setException(TIMED_OUT));
+        assertFalse(future.set("late"));
+
+        assertSame(TIMED_OUT, errors.get(0));
+        assertTrue(results.isEmpty());
+        try {
+            future.get(0, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (CommandException e) {
+            assertSame(TIMED_OUT, e);
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimesOut() throws Exception {
+        new CommandFuture<String>().get(1, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void getWaitsForAnotherThread() throws Exception {
+        final CommandFuture<String> future = new CommandFuture<>();
+        Thread completer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                future.set("reply");
+            }
+        });
+        completer.start();
+
+        assertEquals("reply", future.get(5, TimeUnit.SECONDS));
+        completer.join();
+    }
+
+    @Test
+    public void setFromFollowsOtherFuture() {
+        CommandFuture<String> source = new CommandFuture<>();
+        CommandFuture<Object> copy = new CommandFuture<>();
+        copy.setFrom(source);
+        copy.addCallback(callback);
+        assertFalse(copy.isDone());
+
+        source.set("reply");
+        assertEquals("reply", results.get(0));
+
+        CommandFuture<Object> failedCopy = new CommandFuture<>();
+        failedCopy.setFrom(CommandFuture.<String>failed(TIMED_OUT));
+        failedCopy.addCallback(callback);
+        assertSame(TIMED_OUT, errors.get(0));
+    }
+
+    @Test
+    public void thenChainsOnSuccess() {
+        CommandFuture<Integer> first = new CommandFuture<>();
+        final CommandFuture<String> second = new CommandFuture<>();
+        final List<Integer> seen = new ArrayList<>();
+        first.then(new CommandFuture.Continuation<Integer, String>() {
+            @Override
+            public CommandFuture<String> then(Integer result) {
+                seen.add(result);
+                return second;
+            }
+        }).addCallback(callback);
+
+        first.set(7);
+        assertEquals(1, seen.size());
+        assertEquals(7, (int) seen.get(0));
+        assertTrue(results.isEmpty());
+
+        second.set("done");
+        assertEquals("done", results.get(0));
+    }
+
+    @Test
+    public void thenSkipsContinuationOnFailure() {
+        CommandFuture<Integer> first = new CommandFuture<>();
+        first.then(new CommandFuture.Continuation<Integer, String>() {
+            @Override
+            public CommandFuture<String> then(Integer result) {
+                fail("Continuation ran after a failure");
+                return null;
+            }
+        }).addCallback(callback);
+
+        first.setException(TIMED_OUT);
+        assertSame(TIMED_OUT, errors.get(0));
+        assertTrue(results.isEmpty());
+    }
+}
@@ -0,0 +1,63 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExponentialBackoffTest {
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual + " not in [" + min + ", " + max + "]", actual >= min && actual <= max);
+    }
+
+    @Test
+    public void delaysDoubleWithEqualJitter() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 100000, new Random(1));
+        long step = 100;
+        for (int attempt = 0; attempt < 8; attempt++) {
+            assertBetween(step / 2, step, backoff.nextDelay());
+            step *= 2;
+        }
+        assertEquals(8, backoff.getAttempt());
+    }
+
+    @Test
+    public void delaysAreCapped() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, new Random(2));
+        for (int attempt = 0; attempt < 100; attempt++) {
+            assertBetween(attempt < 4 ? 50 : 500, 1000, backoff.nextDelay());
+        }
+    }
+
+    @Test
+    public void resetStartsOver() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, new Random(3));
+        backoff.nextDelay();
+        backoff.nextDelay();
+        backoff.reset();
+
+        assertEquals(0, backoff.getAttempt());
+        assertBetween(50, 100, backoff.nextDelay());
+    }
+
+    @Test
+    public void manyAttemptsDoNotOverflow() {
+        ExponentialBackoff backoff = new ExponentialBackoff(1000, Long.MAX_VALUE / 2, new Random(4));
+        for (int attempt = 0; attempt < 200; attempt++) {
+            assertTrue(backoff.nextDelay() > 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroInitialDelay() {
+        new ExponentialBackoff(0, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxBelowInitial() {
+        new ExponentialBackoff(1000, 10);
+    }
+}
@@ -0,0 +1,221 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameDecoderTest {
+
+    private final List<byte[]> payloads = new ArrayList<>();
+    private final List<Integer> discardReasons = new ArrayList<>();
+    private int discardedBytes;
+
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(Frame frame) {
+            payloads.add(frame.copyPayload());
+        }
+
+        @Override
+        public void onDiscarded(int reason, int byteCount) {
+            discardReasons.add(reason);
+            discardedBytes += byteCount;
+        }
+    });
+
+    // Payload bytes streamed for the frame last started, and every opcode started.
+    private final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    private final List<Byte> started = new ArrayList<>();
+
+    private final FrameDecoder.PayloadListener payloadListener = new FrameDecoder.PayloadListener() {
+        @Override
+        public void onPayloadStart(byte opcode, int payloadLength) {
+            started.add(opcode);
+            streamed.reset();
+        }
+
+        @Override
+        public void onPayload(byte[] buffer, int offset, int length) {
+            streamed.write(buffer, offset, length);
+        }
+    };
+
+    private static byte[] frame(int payloadLength) {
+        byte[] payload = new byte[payloadLength];
+        for (int i = 0; i < payloadLength; i++) {
+            payload[i] = (byte) (i * 7 + payloadLength);
+        }
+        return FrameEncoder.pack(Opcodes.READ_TRACK, payload);
+    }
+
+    private static byte[] payloadOf(byte[] frame) {
+        return Arrays.copyOfRange(frame, Frame.HEADER_LENGTH, frame.length - Frame.CHECKSUM_LENGTH);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] all = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+
+    @Test
+    public void decodesWholeFrame() {
+        byte[] frame = frame(3);
+        decoder.feed(frame);
+
+        assertEquals(1, payloads.size());
+        assertArrayEquals(payloadOf(frame), payloads.get(0));
+        assertEquals(0, decoder.getBufferedByteCount());
+    }
+
+    @Test
+    public void decodesFrameSplitIntoSingleBytes() {
+        byte[] frame = frame(300);
+        for (int i = 0; i < frame.length - 1; i++) {
+            decoder.feed(frame, i, 1);
+        }
+        assertEquals(0, payloads.size());
+
+        decoder.feed(frame, frame.length - 1, 1);
+        assertEquals(1, payloads.size());
+        assertArrayEquals(payloadOf(frame), payloads.get(0));
+    }
+
+    @Test
+    public void decodesFramesSplitAcrossNotifications() {
+        byte[] stream = concat(frame(0), frame(20), frame(200), frame(3));
+        for (int offset = 0; offset < stream.length; offset += 20) {
+            decoder.feed(stream, offset, Math.min(20, stream.length - offset));
+        }
+
+        assertEquals(4, payloads.size());
+        assertArrayEquals(payloadOf(frame(200)), payloads.get(2));
+        assertEquals(0, discardedBytes);
+    }
+
+    @Test
+    public void decodesManyFramesInOneChunk() {
+        // More than the initial buffer, so the ring grows and frames wrap around it.
+        byte[] stream = concat(frame(250), frame(250), frame(250), frame(5));
+        decoder.feed(stream);
+        decoder.feed(concat(frame(100), frame(250)));
+
+        assertEquals(6, payloads.size());
+        assertArrayEquals(payloadOf(frame(250)), payloads.get(5));
+    }
+
+    @Test
+    public void skipsBytesBeforeHeader() {
+        decoder.feed(concat(new byte[]{'W', 'V', 'x', 0}, frame(2)));
+
+        assertEquals(1, payloads.size());
+        assertEquals(4, discardedBytes);
+        assertEquals(FrameDecoder.DISCARD_NOT_A_HEADER, (int) discardReasons.get(0));
+    }
+
+    @Test
+    public void resyncsAfterBadChecksum() {
+        byte[] corrupt = frame(10);
+        corrupt[Frame.HEADER_LENGTH + 2] ^= 0x55;
+        byte[] good = frame(4);
+        decoder.feed(concat(corrupt, good));
+
+        assertEquals(1, payloads.size());
+        assertArrayEquals(payloadOf(good), payloads.get(0));
+        assertEquals(FrameDecoder.DISCARD_INVALID_CHECKSUM, (int) discardReasons.get(0));
+    }
+
+    @Test
+    public void decodesAnalyticsDumpLongerThanTrack() {
+        byte[] records = new byte[40 * UsageRecord.LENGTH];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = (byte) i;
+        }
+        byte[] frame = FrameEncoder.pack(Opcodes.QUERY_OFFLINE_ANALYTICS, records);
+        for (int offset = 0; offset < frame.length; offset += 20) {
+            decoder.feed(frame, offset, Math.min(20, frame.length - offset));
+        }
+
+        assertEquals(1, payloads.size());
+        assertArrayEquals(records, payloads.get(0));
+        assertEquals(0, discardedBytes);
+    }
+
+    @Test
+    public void decodesFrameOfMaximumLength() {
+        byte[] frame = frame(FrameDecoder.MAX_PAYLOAD_LENGTH);
+        decoder.feed(frame);
+
+        assertEquals(1, payloads.size());
+        assertArrayEquals(payloadOf(frame), payloads.get(0));
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        byte[] stale = frame(100);
+        decoder.feed(stale, 0, 40);
+        decoder.reset();
+        assertEquals(0, decoder.getBufferedByteCount());
+
+        byte[] fresh = frame(5);
+        decoder.feed(fresh);
+        assertEquals(1, payloads.size());
+        assertArrayEquals(payloadOf(fresh), payloads.get(0));
+    }
+
+    @Test
+    public void streamsPayloadAsChunksArrive() {
+        decoder.setPayloadListener(payloadListener);
+        byte[] frame = frame(100);
+        decoder.feed(frame, 0, 20);
+        assertEquals(1, started.size());
+        assertEquals(20 - Frame.HEADER_LENGTH, streamed.size());
+
+        for (int offset = 20; offset < frame.length; offset += 20) {
+            decoder.feed(frame, offset, Math.min(20, frame.length - offset));
+        }
+        assertArrayEquals(payloadOf(frame), streamed.toByteArray());
+        assertEquals(1, payloads.size());
+    }
+
+    @Test
+    public void streamsPayloadWrappingAroundBuffer() {
+        decoder.setPayloadListener(payloadListener);
+        // Leaves the ring's head near its end, so the next payload wraps around.
+        decoder.feed(frame(400));
+        byte[] frame = frame(300);
+        for (int offset = 0; offset < frame.length; offset += 20) {
+            decoder.feed(frame, offset, Math.min(20, frame.length - offset));
+        }
+
+        assertEquals(2, started.size());
+        assertArrayEquals(payloadOf(frame), streamed.toByteArray());
+    }
+
+    @Test
+    public void restartsStreamAfterBadChecksum() {
+        decoder.setPayloadListener(payloadListener);
+        byte[] corrupt = frame(10);
+        corrupt[Frame.HEADER_LENGTH + 2] ^= 0x55;
+        byte[] good = frame(4);
+        decoder.feed(concat(corrupt, good));
+
+        assertEquals(Opcodes.READ_TRACK, (byte) started.get(started.size() - 1));
+        assertArrayEquals(payloadOf(good), streamed.toByteArray());
+        assertEquals(FrameDecoder.DISCARD_INVALID_CHECKSUM, (int) discardReasons.get(0));
+    }
+}
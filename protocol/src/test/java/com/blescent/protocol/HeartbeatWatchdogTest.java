@@ -0,0 +1,104 @@
+package com.blescent.protocol;
+
+import com.blescent.protocol.sim.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatWatchdogTest {
+
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    private final List<String> events = new ArrayList<>();
+    private HeartbeatWatchdog watchdog;
+
+    @Before
+    public void setUp() {
+        watchdog = new HeartbeatWatchdog(scheduler, new HeartbeatWatchdog.Listener() {
+            @Override
+            public void onLinkSuspect(long silenceMillis) {
+                events.add("suspect");
+            }
+
+            @Override
+            public void onLinkDead(long silenceMillis) {
+                events.add("dead");
+            }
+
+            @Override
+            public void onLinkRecovered() {
+                events.add("recovered");
+            }
+        });
+        watchdog.start();
+    }
+
+    private void heartbeats(int count, long interval) {
+        for (int i = 0; i < count; i++) {
+            scheduler.advanceBy(interval);
+            watchdog.onHeartbeat();
+        }
+    }
+
+    @Test
+    public void learnsHeartbeatInterval() {
+        heartbeats(10, 1000);
+
+        assertEquals(1000, watchdog.getExpectedInterval());
+        assertEquals(HeartbeatWatchdog.STATE_ALIVE, watchdog.getState());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void silenceMakesLinkSuspectThenDead() {
+        heartbeats(10, 1000);
+        long suspectAfter = watchdog.getSuspectTimeout();
+
+        scheduler.advanceBy(suspectAfter);
+        assertEquals(HeartbeatWatchdog.STATE_SUSPECT, watchdog.getState());
+        scheduler.advanceBy(2 * 1000);
+        assertEquals(HeartbeatWatchdog.STATE_DEAD, watchdog.getState());
+        assertEquals(2, events.size());
+        assertEquals("dead", events.get(1));
+    }
+
+    @Test
+    public void outageIsNotLearnedOnRecovery() {
+        heartbeats(10, 1000);
+        scheduler.advanceBy(10000);
+        assertEquals(HeartbeatWatchdog.STATE_DEAD, watchdog.getState());
+
+        watchdog.onHeartbeat();
+        assertEquals(HeartbeatWatchdog.STATE_ALIVE, watchdog.getState());
+        assertEquals("recovered", events.get(events.size() - 1));
+        assertEquals(1000, watchdog.getExpectedInterval());
+
+        // Still armed: the next silence is noticed after the usual interval.
+        events.clear();
+        scheduler.advanceBy(watchdog.getSuspectTimeout());
+        assertEquals("suspect", events.get(0));
+    }
+
+    @Test
+    public void quietFirmwareIsNeverReported() {
+        heartbeats(2, 1000);
+        scheduler.advanceBy(60000);
+
+        assertEquals(HeartbeatWatchdog.STATE_ALIVE, watchdog.getState());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void heartbeatsAreIgnoredWhenStopped() {
+        watchdog.stop();
+        heartbeats(10, 1000);
+
+        assertEquals(HeartbeatWatchdog.STATE_IDLE, watchdog.getState());
+        assertEquals(0, watchdog.getExpectedInterval());
+    }
+}
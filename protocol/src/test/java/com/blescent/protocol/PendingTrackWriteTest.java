@@ -0,0 +1,121 @@
+package com.blescent.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PendingTrackWriteTest {
+
+    private static final byte[] TRACK = {1, 2, 3};
+
+    private final List<byte[]> written = new ArrayList<>();
+    private final List<CommandFuture<Void>> writes = new ArrayList<>();
+    private PendingTrackWrite pending;
+
+    @Before
+    public void setUp() {
+        pending = new PendingTrackWrite(new PendingTrackWrite.Writer() {
+            @Override
+            public CommandFuture<Void> write(byte[] track) {
+                written.add(track);
+                CommandFuture<Void> future = new CommandFuture<>();
+                writes.add(future);
+                return future;
+            }
+        });
+    }
+
+    @Test
+    public void skipsWriteWhenDeviceHoldsTrack() {
+        CommandFuture<Void> future = new CommandFuture<>();
+        pending.hold(TRACK, future, new CommandFuture<byte[]>());
+
+        assertTrue(pending.onVerified(true));
+        assertTrue(future.isDone());
+        assertTrue(written.isEmpty());
+        assertNull(pending.getTrack());
+    }
+
+    @Test
+    public void writesWhenDeviceHoldsAnotherTrack() {
+        CommandFuture<Void> future = new CommandFuture<>();
+        pending.hold(TRACK, future, new CommandFuture<byte[]>());
+
+        assertFalse(pending.onVerified(false));
+        assertEquals(1, written.size());
+        assertArrayEquals(TRACK, written.get(0));
+        assertFalse(future.isDone());
+
+        writes.get(0).set(null);
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void writesWhenVerifyReadIsRejected() throws Exception {
+        CommandFuture<Void> future = new CommandFuture<>();
+        // A session that isn't ready yet fails the read before it is sent.
+        CommandFuture<byte[]> read = CommandFuture.failed(
+                new CommandException(CommandException.Reason.NOT_READY, "Services not discovered."));
+        pending.hold(TRACK, future, read);
+
+        assertEquals(1, written.size());
+        assertNull(pending.getTrack());
+
+        writes.get(0).setException(new CommandException(CommandException.Reason.NOT_READY, "Services not discovered."));
+        assertTrue(future.isDone());
+        assertEquals(CommandException.Reason.NOT_READY, failure(future).getReason());
+    }
+
+    @Test
+    public void writesWhenVerifyReadGivesUp() throws Exception {
+        CommandFuture<Void> future = new CommandFuture<>();
+        CommandFuture<byte[]> read = new CommandFuture<>();
+        pending.hold(TRACK, future, read);
+
+        read.setException(new CommandException(CommandException.Reason.TIMED_OUT, "Gave up."));
+        assertEquals(1, written.size());
+
+        writes.get(0).set(null);
+        future.get(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void laterTrackSupersedesHeldOne() throws Exception {
+        CommandFuture<Void> first = new CommandFuture<>();
+        CommandFuture<byte[]> firstRead = new CommandFuture<>();
+        pending.hold(TRACK, first, firstRead);
+        CommandFuture<Void> second = new CommandFuture<>();
+        byte[] secondTrack = {4, 5};
+        pending.hold(secondTrack, second, new CommandFuture<byte[]>());
+
+        assertEquals(CommandException.Reason.SUPERSEDED, failure(first).getReason());
+        assertSame(secondTrack, pending.getTrack());
+
+        // The first read failing late mustn't write or complete the second track.
+        firstRead.setException(new CommandException(CommandException.Reason.ABORTED, "Link lost."));
+        assertTrue(written.isEmpty());
+        assertFalse(second.isDone());
+    }
+
+    private static CommandException failure(CommandFuture<?> future) throws InterruptedException {
+        try {
+            future.get(0, TimeUnit.MILLISECONDS);
+        } catch (CommandException e) {
+            return e;
+        } catch (TimeoutException e) {
+            throw new AssertionError("Not done");
+        }
+        throw new AssertionError("Succeeded");
+    }
+}
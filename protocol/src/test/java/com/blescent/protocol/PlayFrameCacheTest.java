@@ -0,0 +1,62 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PlayFrameCacheTest {
+
+    private final PlayFrameCache cache = new PlayFrameCache();
+
+    @Test
+    public void buildsSameFrameAsEncoder() {
+        assertArrayEquals(FrameEncoder.playScent(10, 50, "A1"), cache.get(10, 50, "A1", false));
+        assertArrayEquals(FrameEncoder.legacyPlayScent(10, 50, "A1"), cache.get(10, 50, "A1", true));
+    }
+
+    @Test
+    public void reusesFrameForSamePlay() {
+        byte[] first = cache.get(10, 50, "A1", false);
+        byte[] second = cache.get(10, 50, "A1", false);
+
+        assertSame(first, second);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void distinguishesEveryField() {
+        byte[] frame = cache.get(10, 50, "A1", false);
+
+        assertNotSame(frame, cache.get(11, 50, "A1", false));
+        assertNotSame(frame, cache.get(10, 51, "A1", false));
+        assertNotSame(frame, cache.get(10, 50, "A2", false));
+        assertNotSame(frame, cache.get(10, 50, "A1", true));
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void collidingPlayReplacesSlot() {
+        byte[] first = cache.get(10, 50, "A1", false);
+        // Enough different plays that one of them lands in the first one's slot.
+        for (int duration = 100; duration < 200; duration++) {
+            cache.get(duration, 50, "A1", false);
+        }
+        byte[] again = cache.get(10, 50, "A1", false);
+
+        assertNotSame(first, again);
+        assertArrayEquals(first, again);
+    }
+
+    @Test
+    public void clearDropsFrames() {
+        byte[] first = cache.get(10, 50, "A1", false);
+        cache.clear();
+
+        assertNotSame(first, cache.get(10, 50, "A1", false));
+        assertEquals(2, cache.getMisses());
+    }
+}
@@ -0,0 +1,84 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RttEstimatorTest {
+
+    private final RttEstimator estimator = new RttEstimator(1000);
+
+    @Test
+    public void usesInitialTimeoutBeforeFirstSample() {
+        assertEquals(1000, estimator.getTimeout(Opcodes.QUERY_STATUS));
+    }
+
+    @Test
+    public void firstSampleGivesThreeRoundTrips() {
+        estimator.onSample(Opcodes.QUERY_STATUS, 100);
+
+        // srtt = 100, rttvar = 50
+        assertEquals(300, estimator.getTimeout(Opcodes.QUERY_STATUS));
+    }
+
+    @Test
+    public void smoothsLaterSamples() {
+        estimator.onSample(Opcodes.QUERY_STATUS, 100);
+        estimator.onSample(Opcodes.QUERY_STATUS, 200);
+
+        // rttvar = 50 + (100 - 50) / 4 = 62.5, srtt = 100 + 100 / 8 = 112.5
+        assertEquals(363, estimator.getTimeout(Opcodes.QUERY_STATUS));
+        RttEstimator.Estimate estimate = estimator.estimate(CommandMetrics.slot(Opcodes.QUERY_STATUS));
+        assertEquals(112.5, estimate.getSmoothedRoundTrip(), 1e-9);
+        assertEquals(62.5, estimate.getRoundTripVariation(), 1e-9);
+        assertEquals(2, estimate.getSampleCount());
+        assertEquals(200, estimate.getLastSample());
+    }
+
+    @Test
+    public void unsampledOpcodeUsesLinkEstimate() {
+        estimator.onSample(Opcodes.QUERY_STATUS, 100);
+
+        assertEquals(300, estimator.getTimeout(Opcodes.READ_TRACK));
+    }
+
+    @Test
+    public void clampsToBounds() {
+        estimator.onSample(Opcodes.QUERY_STATUS, 10);
+        assertEquals(RttEstimator.DEFAULT_MIN_TIMEOUT, estimator.getTimeout(Opcodes.QUERY_STATUS));
+
+        estimator.setTimeoutBounds(100, 2000);
+        estimator.onSample(Opcodes.READ_TRACK, 5000);
+        assertEquals(2000, estimator.getTimeout(Opcodes.READ_TRACK));
+    }
+
+    @Test
+    public void timeoutsDoubleUntilCompletion() {
+        estimator.onSample(Opcodes.QUERY_STATUS, 100);
+        estimator.onTimeout(Opcodes.QUERY_STATUS);
+        assertEquals(600, estimator.getTimeout(Opcodes.QUERY_STATUS));
+        estimator.onTimeout(Opcodes.QUERY_STATUS);
+        assertEquals(1200, estimator.getTimeout(Opcodes.QUERY_STATUS));
+        // Only the opcode that timed out backs off.
+        assertEquals(300, estimator.getTimeout(Opcodes.READ_TRACK));
+
+        estimator.onCompletedAfterResend(Opcodes.QUERY_STATUS);
+        assertEquals(300, estimator.getTimeout(Opcodes.QUERY_STATUS));
+    }
+
+    @Test
+    public void backoffIsCappedAtMaximum() {
+        for (int i = 0; i < 40; i++) {
+            estimator.onTimeout(Opcodes.QUERY_STATUS);
+        }
+        assertEquals(RttEstimator.DEFAULT_MAX_TIMEOUT, estimator.getTimeout(Opcodes.QUERY_STATUS));
+
+        estimator.onSample(Opcodes.QUERY_STATUS, 100);
+        assertEquals(300, estimator.getTimeout(Opcodes.QUERY_STATUS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedBounds() {
+        estimator.setTimeoutBounds(500, 100);
+    }
+}
@@ -0,0 +1,116 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanResultCacheTest {
+
+    private static final String A = "00:00:00:00:00:0A";
+    private static final String B = "00:00:00:00:00:0B";
+    private static final String C = "00:00:00:00:00:0C";
+
+    private final ScanResultCache cache = new ScanResultCache();
+
+    @Test
+    public void smoothsRssi() {
+        cache.onAdvertisement(A, "oPhone", -60, 0);
+        cache.onAdvertisement(A, null, -80, 100);
+
+        ScannedDevice device = cache.get(A);
+        assertEquals(-60 + ScanResultCache.DEFAULT_RSSI_SMOOTHING * -20, device.getRssi(), 1e-9);
+        assertEquals(-80, device.getLastRssi());
+        assertEquals(2, device.getAdvertisementCount());
+        assertEquals(0, device.getFirstSeen());
+        assertEquals(100, device.getLastSeen());
+        // An advertisement without a name keeps the one already known.
+        assertEquals("oPhone", device.getName());
+    }
+
+    @Test
+    public void reportsNewDevicesOnce() {
+        cache.onAdvertisement(A, "oPhone", -60, 0);
+        cache.onAdvertisement(B, "oPhone", -70, 0);
+
+        assertEquals(2, cache.takeChanged().size());
+        assertTrue(cache.takeChanged().isEmpty());
+    }
+
+    @Test
+    public void reportsRssiChangeOnlyPastThreshold() {
+        cache.onAdvertisement(A, "oPhone", -60, 0);
+        cache.takeChanged();
+
+        // Moves the average by 1 dB, under the 2 dB threshold.
+        cache.onAdvertisement(A, null, -64, 100);
+        assertTrue(cache.takeChanged().isEmpty());
+
+        // Together with the earlier drift that is past it.
+        cache.onAdvertisement(A, null, -68, 200);
+        List<ScannedDevice> changed = cache.takeChanged();
+        assertEquals(1, changed.size());
+        assertEquals(A, changed.get(0).getAddress());
+    }
+
+    @Test
+    public void reportsNameChange() {
+        cache.onAdvertisement(A, "oPhone", -60, 0);
+        cache.takeChanged();
+        cache.onAdvertisement(A, "oPhone 2", -60, 100);
+
+        assertEquals("oPhone 2", cache.takeChanged().get(0).getName());
+    }
+
+    @Test
+    public void evictsLeastRecentlyHeard() {
+        ScanResultCache small = new ScanResultCache(2);
+        small.onAdvertisement(A, null, -60, 0);
+        small.onAdvertisement(B, null, -60, 10);
+        small.onAdvertisement(A, null, -60, 20);
+        small.onAdvertisement(C, null, -60, 30);
+
+        assertEquals(2, small.size());
+        assertNull(small.get(B));
+        assertEquals(Collections.singletonList(B), small.takeLost(30, 1000));
+        assertTrue(small.takeLost(30, 1000).isEmpty());
+    }
+
+    @Test
+    public void takeLostForgetsQuietDevices() {
+        cache.onAdvertisement(A, null, -60, 0);
+        cache.onAdvertisement(B, null, -60, 5000);
+
+        assertEquals(Collections.singletonList(A), cache.takeLost(10001, 10000));
+        assertNull(cache.get(A));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void nearestIsStrongestRecentDevice() {
+        cache.onAdvertisement(A, null, -50, 0);
+        cache.onAdvertisement(B, null, -70, 9000);
+        cache.onAdvertisement(C, null, -60, 9500);
+
+        assertEquals(A, cache.getNearest(10000, 10000).getAddress());
+        // A has gone quiet for too long.
+        assertEquals(C, cache.getNearest(10000, 5000).getAddress());
+        assertNull(cache.getNearest(20000, 5000));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        ScanResultCache small = new ScanResultCache(1);
+        small.onAdvertisement(A, null, -60, 0);
+        small.onAdvertisement(B, null, -60, 0);
+        small.clear();
+
+        assertEquals(0, small.size());
+        assertTrue(small.takeLost(0, 0).isEmpty());
+        assertTrue(small.getDevices().isEmpty());
+    }
+}
@@ -0,0 +1,90 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SettingsFramePoolTest {
+
+    private final SettingsFramePool pool = new SettingsFramePool();
+
+    private byte[] acquire(int fanSpeed) {
+        return pool.acquire(fanSpeed, true, 30, false, 0, true);
+    }
+
+    private static byte[] expected(int fanSpeed) {
+        return FrameEncoder.writeSettings(fanSpeed, true, 30, false, 0, true);
+    }
+
+    @Test
+    public void buildsSameFrameAsEncoder() {
+        assertArrayEquals(expected(40), acquire(40));
+        assertArrayEquals(FrameEncoder.writeSettings(40, false, 0, true, 15, false),
+                pool.acquire(40, false, 0, true, 15, false));
+    }
+
+    @Test
+    public void sharesHeldFrameWithSameSettings() {
+        byte[] first = acquire(40);
+        byte[] second = acquire(40);
+
+        assertSame(first, second);
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void neverRewritesHeldFrame() {
+        byte[] first = acquire(40);
+        byte[] second = acquire(60);
+
+        assertNotSame(first, second);
+        assertArrayEquals(expected(40), first);
+        assertArrayEquals(expected(60), second);
+    }
+
+    @Test
+    public void reusesReleasedArray() {
+        byte[] first = acquire(40);
+        pool.release(first);
+        byte[] second = acquire(60);
+
+        assertSame(first, second);
+        assertArrayEquals(expected(60), second);
+    }
+
+    @Test
+    public void sharedFrameIsHeldUntilEveryHolderReleases() {
+        byte[] frame = acquire(40);
+        acquire(40);
+        pool.release(frame);
+
+        // Still held by the second command, so new settings get another array.
+        byte[] other = acquire(60);
+        assertNotSame(frame, other);
+        assertArrayEquals(expected(40), frame);
+
+        pool.release(frame);
+        pool.release(other);
+        byte[] reused = acquire(80);
+        assertTrue(reused == frame || reused == other);
+    }
+
+    @Test
+    public void allocatesOutsidePoolWhenEveryArrayIsHeld() {
+        for (int i = 0; i < 4; i++) {
+            acquire(10 + i);
+        }
+        byte[] extra = acquire(90);
+        assertArrayEquals(expected(90), extra);
+
+        // Releasing a frame the pool didn't hand out is ignored.
+        pool.release(extra);
+        assertNotSame(extra, acquire(91));
+        assertEquals(6, pool.getMisses());
+    }
+}
@@ -0,0 +1,204 @@
+package com.blescent.protocol;
+
+import com.blescent.protocol.sim.SimulatedLink;
+import com.blescent.protocol.sim.SimulatedPeripheral;
+import com.blescent.protocol.sim.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimelinePlayerTest {
+
+    // One-way delay of the simulated link, so a play's round trip is twice this.
+    private static final long LATENCY = 40;
+
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    private final SimulatedPeripheral peripheral = new SimulatedPeripheral(scheduler, new Random(1));
+    private final List<Long> dispatchTimes = new ArrayList<>();
+    private final List<Long> skews = new ArrayList<>();
+    private final List<Integer> failed = new ArrayList<>();
+    private int finished;
+    private SimulatedLink link;
+
+    private final TimelinePlayer.Sink sink = new TimelinePlayer.Sink() {
+        @Override
+        public void send(Command command) {
+            dispatchTimes.add(scheduler.now());
+            link.getEngine().enqueue(command);
+        }
+    };
+
+    private final TimelinePlayer.Listener listener = new TimelinePlayer.Listener() {
+        @Override
+        public void onCueDelivered(int index, ScentTimeline.Cue cue, long skewMillis) {
+            skews.add(skewMillis);
+        }
+
+        @Override
+        public void onCueFailed(int index, ScentTimeline.Cue cue, CommandException error) {
+            failed.add(index);
+        }
+
+        @Override
+        public void onTimelineFinished() {
+            finished++;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        peripheral.setLatency(LATENCY, 0);
+        peripheral.setProcessingTime(0);
+        peripheral.setHeartbeatInterval(0);
+        link = new SimulatedLink(scheduler, peripheral, new CommandEngine.Listener() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onCommandCompleted(Command command) {
+                ((CommandFuture<Object>) command.getFuture()).set(null);
+            }
+
+            @Override
+            public void onCommandGaveUp(Command command, CommandException.Reason reason) {
+                command.getFuture().setException(new CommandException(reason, "Gave up"));
+            }
+
+            @Override
+            public void onCommandSuperseded(Command command, Command by) {
+                command.getFuture().setException(new CommandException(CommandException.Reason.SUPERSEDED, "Superseded"));
+            }
+
+            @Override
+            public void onCommandTimedOut(Command command) {
+            }
+        }, new HeartbeatWatchdog.Listener() {
+            @Override
+            public void onLinkSuspect(long silenceMillis) {
+            }
+
+            @Override
+            public void onLinkDead(long silenceMillis) {
+            }
+
+            @Override
+            public void onLinkRecovered() {
+            }
+        });
+        link.connect();
+    }
+
+    private static ScentTimeline show() {
+        return new ScentTimeline()
+                .addPlay(1000, 5, 50, "A1")
+                .addPlay(2000, 5, 60, "A2")
+                .addPlay(3000, 5, 70, "A3")
+                .addStop(4000);
+    }
+
+    private TimelinePlayer play(ScentTimeline timeline, long initialLead, long position) {
+        TimelinePlayer player = new TimelinePlayer(timeline, false, initialLead, scheduler, sink, listener);
+        player.start(position);
+        return player;
+    }
+
+    @Test
+    public void dispatchesEachCueLeadTimeEarly() {
+        TimelinePlayer player = play(show(), LATENCY, 0);
+        scheduler.advanceBy(5000);
+
+        long start = player.getStartTime();
+        assertEquals(4, dispatchTimes.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(start + (i + 1) * 1000 - LATENCY, (long) dispatchTimes.get(i));
+        }
+        // The device gets every cue exactly on time.
+        for (long skew : skews) {
+            assertEquals(0, skew);
+        }
+        assertEquals(LATENCY, player.getLead());
+        assertEquals(1, finished);
+    }
+
+    @Test
+    public void learnsLeadFromLateCues() {
+        TimelinePlayer player = play(show(), 0, 0);
+        scheduler.advanceBy(5000);
+
+        long start = player.getStartTime();
+        assertEquals(LATENCY, (long) skews.get(0));
+        // The next cue is already timed when the first is acknowledged; after that a quarter
+        // of each cue's lateness comes off the following dispatches.
+        assertEquals(start + 1000, (long) dispatchTimes.get(0));
+        assertEquals(start + 2000, (long) dispatchTimes.get(1));
+        for (int i = 2; i < dispatchTimes.size(); i++) {
+            assertTrue(dispatchTimes.get(i) < start + (i + 1) * 1000);
+            assertTrue(skews.get(i) < skews.get(i - 1));
+        }
+        assertTrue(player.getLead() > 0 && player.getLead() < LATENCY);
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    public void timerLatenessDoesNotAddUp() {
+        final long lateness = 7;
+        Scheduler late = new Scheduler() {
+            @Override
+            public long now() {
+                return scheduler.now();
+            }
+
+            @Override
+            public Cancellable schedule(Runnable task, long delayMillis) {
+                return scheduler.schedule(task, delayMillis + lateness);
+            }
+        };
+        final List<Long> leads = new ArrayList<>();
+        final TimelinePlayer[] player = new TimelinePlayer[1];
+        player[0] = new TimelinePlayer(show(), false, LATENCY, late, new TimelinePlayer.Sink() {
+            @Override
+            public void send(Command command) {
+                leads.add(player[0].getLead());
+                sink.send(command);
+            }
+        }, listener);
+        player[0].start(0);
+        scheduler.advanceBy(5000);
+
+        // Each cue is timed from the start with the lead known when the one before went out,
+        // so every dispatch is late by one timer's lateness, never more.
+        long start = player[0].getStartTime();
+        assertEquals(4, dispatchTimes.size());
+        for (int i = 0; i < 4; i++) {
+            long lead = i == 0 ? LATENCY : leads.get(i - 1);
+            assertEquals(start + (i + 1) * 1000 - lead + lateness, (long) dispatchTimes.get(i));
+        }
+    }
+
+    @Test
+    public void startsPartwayThrough() {
+        TimelinePlayer player = play(show(), LATENCY, 2500);
+        scheduler.advanceBy(5000);
+
+        assertEquals(2, dispatchTimes.size());
+        assertEquals(player.getStartTime() + 3000 - LATENCY, (long) dispatchTimes.get(0));
+        assertEquals(1, finished);
+    }
+
+    @Test
+    public void cancelStopsDispatching() {
+        TimelinePlayer player = play(show(), LATENCY, 0);
+        scheduler.advanceBy(1500);
+        player.cancel();
+        scheduler.advanceBy(5000);
+
+        assertEquals(1, dispatchTimes.size());
+        assertEquals(1, skews.size());
+        assertEquals(0, finished);
+    }
+}
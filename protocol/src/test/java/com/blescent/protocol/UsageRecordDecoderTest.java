@@ -0,0 +1,90 @@
+package com.blescent.protocol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class UsageRecordDecoderTest {
+
+    private final List<UsageRecord> records = new ArrayList<>();
+    private final UsageRecordDecoder decoder = new UsageRecordDecoder(new UsageRecordDecoder.Listener() {
+        @Override
+        public void onRecord(UsageRecord record) {
+            records.add(record);
+        }
+    });
+
+    private static byte[] encode(int count) {
+        byte[] bytes = new byte[count * UsageRecord.LENGTH];
+        for (int i = 0; i < count; i++) {
+            new UsageRecord(1500000000L + i * 3600, 30 + i, 50, i % 4).encode(bytes, i * UsageRecord.LENGTH);
+        }
+        return bytes;
+    }
+
+    private void assertRecords(int count) {
+        assertEquals(count, records.size());
+        for (int i = 0; i < count; i++) {
+            UsageRecord record = records.get(i);
+            assertEquals(1500000000L + i * 3600, record.getStartTime());
+            assertEquals(30 + i, record.getDuration());
+            assertEquals(50, record.getIntensity());
+            assertEquals(i % 4, record.getSlot());
+        }
+    }
+
+    @Test
+    public void decodesWholeRecords() {
+        byte[] bytes = encode(5);
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertRecords(5);
+        assertEquals(5, decoder.getRecordCount());
+        assertEquals(0, decoder.getPendingByteCount());
+    }
+
+    @Test
+    public void completesRecordsSplitAcrossChunks() {
+        // Notification-sized chunks never line up with record boundaries.
+        byte[] bytes = encode(12);
+        for (int offset = 0; offset < bytes.length; offset += 13) {
+            decoder.feed(bytes, offset, Math.min(13, bytes.length - offset));
+        }
+
+        assertRecords(12);
+        assertEquals(0, decoder.getPendingByteCount());
+    }
+
+    @Test
+    public void completesRecordFedOneByteAtATime() {
+        byte[] bytes = encode(2);
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.feed(bytes, i, 1);
+        }
+
+        assertRecords(2);
+    }
+
+    @Test
+    public void keepsTrailingBytesPending() {
+        byte[] bytes = encode(3);
+        decoder.feed(bytes, 0, bytes.length - 3);
+
+        assertRecords(2);
+        assertEquals(UsageRecord.LENGTH - 3, decoder.getPendingByteCount());
+    }
+
+    @Test
+    public void resetDropsPartialRecord() {
+        byte[] bytes = encode(2);
+        decoder.feed(bytes, 0, 5);
+        decoder.reset();
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertRecords(2);
+        assertEquals(2, decoder.getRecordCount());
+    }
+}
@@ -0,0 +1,109 @@
+package com.blescent.protocol.sim;
+
+import com.blescent.protocol.Command;
+import com.blescent.protocol.CommandEngine;
+import com.blescent.protocol.CommandException;
+import com.blescent.protocol.FrameEncoder;
+import com.blescent.protocol.HeartbeatWatchdog;
+import com.blescent.protocol.Opcodes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SimulatedPeripheralTest {
+
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    private final SimulatedPeripheral peripheral = new SimulatedPeripheral(scheduler, new Random(1));
+    private final List<Command> completed = new ArrayList<>();
+    private SimulatedLink link;
+
+    @Before
+    public void setUp() {
+        // Only heartbeats riding on replies reach the link.
+        peripheral.setHeartbeatInterval(0);
+        link = new SimulatedLink(scheduler, peripheral, new CommandEngine.Listener() {
+            @Override
+            public void onCommandCompleted(Command command) {
+                completed.add(command);
+            }
+
+            @Override
+            public void onCommandGaveUp(Command command, CommandException.Reason reason) {
+            }
+
+            @Override
+            public void onCommandSuperseded(Command command, Command by) {
+            }
+
+            @Override
+            public void onCommandTimedOut(Command command) {
+            }
+        }, new HeartbeatWatchdog.Listener() {
+            @Override
+            public void onLinkSuspect(long silenceMillis) {
+            }
+
+            @Override
+            public void onLinkDead(long silenceMillis) {
+            }
+
+            @Override
+            public void onLinkRecovered() {
+            }
+        });
+        link.connect();
+    }
+
+    private Command queryStatus() {
+        Command command = new Command(FrameEncoder.packEmpty(Opcodes.QUERY_STATUS), true);
+        link.getEngine().enqueue(command);
+        scheduler.advanceBy(1000);
+        return command;
+    }
+
+    @Test
+    public void replyWithoutPrefixCarriesNoHeartbeat() {
+        Command status = queryStatus();
+
+        assertEquals(1, completed.size());
+        assertSame(status, completed.get(0));
+        assertEquals(0, link.getEngine().getMetricsSnapshot().getHeartbeats());
+    }
+
+    @Test
+    public void heartbeatPrefixIsStrippedFromReply() {
+        peripheral.setReplyHeartbeatPrefix(3);
+        Command status = queryStatus();
+
+        assertEquals(1, completed.size());
+        assertSame(status, completed.get(0));
+        assertEquals(1, link.getFramesReceived());
+        assertEquals(1, link.getEngine().getMetricsSnapshot().getHeartbeats());
+    }
+
+    @Test
+    public void heartbeatPrefixTakesRoomFromReply() {
+        peripheral.setNotificationLength(4);
+        peripheral.setReplyHeartbeatPrefix(3);
+        long before = peripheral.getNotificationsSent();
+        queryStatus();
+
+        assertEquals(1, completed.size());
+        // One reply byte after the prefix, the rest in notifications of four. A status
+        // reply carries battery, state and whether usage is stored.
+        int replyLength = FrameEncoder.pack(Opcodes.QUERY_STATUS, new byte[3]).length;
+        assertEquals(1 + (replyLength - 1 + 3) / 4, peripheral.getNotificationsSent() - before);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prefixMustLeaveRoomForReply() {
+        peripheral.setReplyHeartbeatPrefix(SimulatedPeripheral.DEFAULT_NOTIFICATION_LENGTH);
+    }
+}
@@ -0,0 +1,178 @@
+package com.blescent.library;
+
+import android.content.Context;
+import android.content.Intent;
+
+import com.blescent.library.BluetoothLeService.Key;
+import com.blescent.library.BluetoothLeService.notification;
+import com.blescent.protocol.CommandException;
+import com.blescent.protocol.DeviceStatus;
+import com.blescent.protocol.RfidTag;
+
+import java.util.Arrays;
+
+/**
+ * Turns peripheral events back into the broadcast Intents the service has always sent, for
+ * apps that still listen with a {@code BroadcastReceiver}. Registered by default; see
+ * {@link BluetoothLeService#setBroadcastIntentsEnabled(boolean)}.
+ */
+class BroadcastPeripheralListener implements PeripheralListener {
+    private final Context context;
+
+    BroadcastPeripheralListener(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public void onConnected(String address) {
+        broadcastUpdate(address, BluetoothLeService.ACTION_GATT_CONNECTED);
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        broadcastUpdate(address, BluetoothLeService.ACTION_GATT_DISCONNECTED);
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+        broadcastUpdate(address, BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
+    }
+
+    @Override
+    public void onReconnecting(String address, int attempt, long delayMillis) {
+    }
+
+    @Override
+    public void onReconnectFailed(String address) {
+    }
+
+    @Override
+    public void onFirmwareRevision(String address, byte firmwareRevision) {
+    }
+
+    @Override
+    public void onCharacteristicRead(String address, byte[] value) {
+        broadcastUpdate(address, BluetoothLeService.ACTION_DATA_AVAILABLE, BluetoothLeService.byteArrayToString(value));
+    }
+
+    @Override
+    public void onCharacteristicWrite(String address, byte[] value) {
+        broadcastUpdate(address, BluetoothLeService.ACTION_DATA_AVAILABLE, BluetoothLeService.byteArrayToString(value));
+    }
+
+    @Override
+    public void onHeartbeat(String address) {
+        broadcastUpdate(address, notification.OPBTPeripheralHeartbeatNotification.name());
+    }
+
+    /**
+     * Sent as {@code OPBTPeripheralDataQueueConnectionDiedNotification} with
+     * {@code OPBTPeripheralWasSuspectKey} true.
+     */
+    @Override
+    public void onLinkSuspect(String address, long silenceMillis) {
+        broadcastConnectionDied(address, true);
+    }
+
+    /**
+     * Sent as {@code OPBTPeripheralDataQueueConnectionDiedNotification} with
+     * {@code OPBTPeripheralWasSuspectKey} false.
+     */
+    @Override
+    public void onLinkDead(String address, long silenceMillis) {
+        broadcastConnectionDied(address, false);
+    }
+
+    @Override
+    public void onLinkRecovered(String address) {
+    }
+
+    private void broadcastConnectionDied(String address, boolean suspect) {
+        Intent intent = newIntent(address, notification.OPBTPeripheralDataQueueConnectionDiedNotification.name());
+        intent.putExtra(Key.OPBTPeripheralWasSuspectKey.name(), suspect);
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onDataReceived(String address, byte[] data, int offset, int length) {
+        Intent intent = newIntent(address, notification.OPBTPeripheralDataReceivedNotification.name());
+        intent.putExtra(Key.OPBTPeripheralReceivedDataKey.name(), Arrays.copyOfRange(data, offset, offset + length));
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onPlayScentAcknowledged(String address) {
+        broadcastUpdate(address, notification.OPBTPeripheralPlayScentNotification.name());
+    }
+
+    @Override
+    public void onStopScentAcknowledged(String address) {
+        broadcastUpdate(address, notification.OPBTPeripheralStopScentNotification.name());
+    }
+
+    @Override
+    public void onDeviceStatus(String address, DeviceStatus status) {
+        Intent intent = newIntent(address, notification.OPBTPeripheralDeviceStatusNotification.name());
+        intent.putExtra(Key.OPBTPeripheralBatteryLevelKey.name(), status.getBatteryLevel());
+        intent.putExtra(Key.OPBTPeripheralHasOfflineAnalyticsKey.name(), status.getHasOfflineAnalytics());
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onTrackWritten(String address) {
+        broadcastUpdate(address, notification.OPBTPeripheralWroteTrackNotification.name());
+    }
+
+    @Override
+    public void onStoredTrackRead(String address, byte[] track) {
+        Intent intent = newIntent(address, notification.OPBTPeripheralStoredTrackReadNotification.name());
+        intent.putExtra(Key.OPBTPeripheralStoredTrackKey.name(), track);
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onRfidRead(String address, RfidTag tag) {
+        Intent intent = newIntent(address, notification.OPBTPeripheralRFIDReadNotification.name());
+        intent.putExtra(Key.OPBTPeripheralRFIDFamilyKey.name(), tag.getFamilyCode());
+        intent.putExtra(Key.OPBTPeripheralRFIDIdentifierKey.name(), tag.getIdentifier());
+        intent.putExtra(Key.OPBTPeripheralRFIDDeviceTypeKey.name(), tag.getDeviceType());
+        intent.putExtra(Key.OPBTPeripheralRFIDValidKey.name(), tag.getValid());
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onOfflineAnalyticsRead(String address, byte[] data, int offset, int length) {
+        Intent intent = newIntent(address, notification.OPBTPeripheralOfflineAnalyticsReadNotification.name());
+        intent.putExtra(Key.OPBTPeripheralOfflineAnalyticsKey.name(), Arrays.copyOfRange(data, offset, offset + length));
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onOfflineAnalyticsStored(String address, int recordCount) {
+    }
+
+    @Override
+    public void onCommunicationError(String address, String message) {
+        broadcastUpdate(address, notification.OPBTPeripheralCommunicationErrorNotification.name(), message);
+    }
+
+    @Override
+    public void onCommandFailed(String address, int opcode, CommandException error) {
+    }
+
+    private Intent newIntent(String address, String action) {
+        Intent intent = new Intent(action);
+        intent.putExtra(Key.OPBTPeripheralDeviceAddressKey.name(), address);
+        return intent;
+    }
+
+    private void broadcastUpdate(String address, final String action) {
+        context.sendBroadcast(newIntent(address, action));
+    }
+
+    private void broadcastUpdate(String address, final String action, String message) {
+        final Intent intent = newIntent(address, action);
+        intent.putExtra(BluetoothLeService.EXTRA_DATA, message);
+        context.sendBroadcast(intent);
+    }
+}
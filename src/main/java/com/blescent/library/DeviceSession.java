@@ -0,0 +1,1283 @@
+package com.blescent.library;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.util.Log;
+
+import com.blescent.protocol.Command;
+import com.blescent.protocol.CommandEngine;
+import com.blescent.protocol.CommandException;
+import com.blescent.protocol.CommandFuture;
+import com.blescent.protocol.AnalyticsLog;
+import com.blescent.protocol.CommandMetrics;
+import com.blescent.protocol.DeviceStatus;
+import com.blescent.protocol.ExponentialBackoff;
+import com.blescent.protocol.FirmwareCapabilities;
+import com.blescent.protocol.Frame;
+import com.blescent.protocol.FrameDecoder;
+import com.blescent.protocol.FrameEncoder;
+import com.blescent.protocol.HeartbeatWatchdog;
+import com.blescent.protocol.Opcodes;
+import com.blescent.protocol.PendingTrackWrite;
+import com.blescent.protocol.PlayFrameCache;
+import com.blescent.protocol.ProtocolActor;
+import com.blescent.protocol.RfidTag;
+import com.blescent.protocol.Scheduler;
+import com.blescent.protocol.ScentTimeline;
+import com.blescent.protocol.SettingsFramePool;
+import com.blescent.protocol.TimelinePlayer;
+import com.blescent.protocol.Transport;
+import com.blescent.protocol.UsageRecord;
+import com.blescent.protocol.UsageRecordDecoder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.blescent.library.BluetoothLeService.STATE_CONNECTED;
+import static com.blescent.library.BluetoothLeService.STATE_CONNECTING;
+import static com.blescent.library.BluetoothLeService.STATE_DISCONNECTED;
+import static com.blescent.library.BluetoothLeService.kOPhoneRXCharacteristicUUID;
+import static com.blescent.library.BluetoothLeService.oPhoneFirmwareRevisionStringCharacteristicUUID;
+
+/**
+ * Connection and protocol state for one peripheral: its GATT connection, command queue,
+ * response decoder and firmware revision. Each session has its own GATT callback, so
+ * sessions for different devices run independently of each other.
+ * <p>
+ * The command engine, decoder, watchdog and track state belong to the service's
+ * {@link ProtocolActor}: API calls and GATT callbacks post to it rather than touching that
+ * state themselves, so any thread can call in without racing the Bluetooth callbacks.
+ */
+public class DeviceSession {
+    private final static String TAG = DeviceSession.class.getSimpleName();
+
+    private static final int oPBTPeripheralMaxStoredTrackSize = 256;
+    private static final int VPBTResponseStatusInvalid = 1;
+    private static final int VPBTResponseStatusValid = 2;
+    private static final byte VPHeartbeatCharacter = 'W';
+    // Largest ATT MTU Android can negotiate; the peripheral answers with what it supports.
+    private static final int PREFERRED_MTU = 517;
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_WRITE_HEADER_LENGTH = 3;
+    private static final int RECONNECT_INITIAL_DELAY = 500;
+    private static final int RECONNECT_MAX_DELAY = 30000;
+    // gatt.connect() waits in the background indefinitely; an attempt not through by then
+    // counts as failed.
+    private static final int RECONNECT_ATTEMPT_TIMEOUT = 10000;
+    static final int DEFAULT_MAX_RECONNECT_ATTEMPTS = 8;
+    // A play that arrives this late after a dropout is no longer wanted.
+    private static final int PLAY_SCENT_TIME_TO_LIVE = 2000;
+
+    private final BluetoothLeService service;
+    private final String address;
+    private final PeripheralListener listener;
+    private final ProtocolActor actor;
+    // Written by connect() and close() on the caller's thread; read it once into a local.
+    private volatile BluetoothGatt mBluetoothGatt;
+    // Resolved in onServicesDiscovered; null until then and after a disconnect.
+    private volatile GattHandles handles;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private volatile byte firmwareRevision = 0;
+    private volatile FirmwareCapabilities capabilities = FirmwareCapabilities.forRevision((byte) 0);
+    private volatile String firmwareRevisionString;
+    private volatile int mtu = DEFAULT_MTU;
+    // Reconnect state, from a dropout until the link is back or reconnecting is given up;
+    // actor thread only, as are the timers below.
+    private boolean reconnecting;
+    // Set while a timed out reconnect attempt is being cancelled, so the disconnect that may
+    // report isn't taken for another dropout.
+    private boolean reconnectAttemptCancelled;
+    private final ExponentialBackoff reconnectBackoff = new ExponentialBackoff(RECONNECT_INITIAL_DELAY, RECONNECT_MAX_DELAY);
+    private Scheduler.Cancellable pendingReconnect;
+    private Scheduler.Cancellable pendingReconnectTimeout;
+    private final Runnable reconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            pendingReconnect = null;
+            reconnect();
+        }
+    };
+    private final Runnable reconnectTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            pendingReconnectTimeout = null;
+            onReconnectTimedOut();
+        }
+    };
+    // The status query confirming a cached firmware revision; actor thread only.
+    private Scheduler.Cancellable pendingFirmwareQuery;
+    // The sync whose analytics query is outstanding, if any; actor thread only.
+    private CommandFuture<Integer> analyticsSync;
+    // Hash of the track the device is known to hold on this connection; actor thread only.
+    private String verifiedTrackHash;
+    // A track waiting for a read to tell whether the device already holds it; actor thread only.
+    private final PendingTrackWrite pendingTrackWrite;
+    private volatile boolean autoReconnect;
+    private volatile int maxReconnectAttempts = DEFAULT_MAX_RECONNECT_ATTEMPTS;
+    // Set by disconnect() so the drop it causes isn't treated as a dropout.
+    private volatile boolean disconnectRequested;
+
+    // Decoded reply of the frame being handed to the engine, for the command it completes.
+    private Object reply;
+
+    private final CommandEngine commandEngine;
+    private final HeartbeatWatchdog watchdog;
+    private final PlayFrameCache playFrames = new PlayFrameCache();
+    private final SettingsFramePool settingsFrames = new SettingsFramePool();
+    // Reused chunk arrays by length; the stack copies a value when the write is issued, so
+    // one array per length is enough. Actor thread only.
+    private final byte[][] chunkBuffers = new byte[PREFERRED_MTU - 3 + 1][];
+
+    DeviceSession(final BluetoothLeService service, final String address, final PeripheralListener listener) {
+        this.service = service;
+        this.address = address;
+        this.listener = listener;
+        actor = service.getProtocolActor();
+        commandEngine = new CommandEngine(new Transport() {
+            @Override
+            public boolean write(byte[] frame, int offset, int length, boolean withResponse) {
+                GattHandles handles = DeviceSession.this.handles;
+                BluetoothGattCharacteristic characteristic = handles == null ? null : handles.tx;
+                if (characteristic == null) {
+                    return false;
+                }
+                characteristic.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                        : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                byte[] chunk = frame;
+                if (offset != 0 || length != frame.length) {
+                    chunk = chunkBuffer(length);
+                    System.arraycopy(frame, offset, chunk, 0, length);
+                }
+                return writeCharacteristic(characteristic, chunk);
+            }
+        }, actor, new CommandEngine.Listener() {
+            @Override
+            public void onCommandCompleted(Command command) {
+                Log.d(TAG, "work completed");
+                if (command.getOpcode() == Opcodes.WRITE_TRACK) {
+                    byte[] frame = command.getFrame();
+                    String hash = TrackCache.hash(frame, Frame.HEADER_LENGTH,
+                            frame.length - Frame.HEADER_LENGTH - Frame.CHECKSUM_LENGTH);
+                    verifiedTrackHash = hash;
+                    service.getTrackCache().put(address, hash);
+                }
+                finished(command);
+                complete(command, command.isWaitForResponse() ? reply : null);
+            }
+
+            @Override
+            public void onCommandGaveUp(Command command, CommandException.Reason reason) {
+                Log.d(TAG, "!! Giving up on command " + command.getOpcode() + ": " + reason);
+                fail(command, new CommandException(reason, "Gave up after " + command.getRetryCount() + " resends."));
+            }
+
+            @Override
+            public void onCommandSuperseded(Command command, Command by) {
+                Log.d(TAG, "Dropped pending command " + command.getOpcode() + "; superseded.");
+                finished(command);
+                if (command.getFuture() != null && by.getFuture() != null && Opcodes.isQuery(command.getOpcode())) {
+                    // An identical query is already pending; its answer is this one's too.
+                    setFrom(command.getFuture(), by.getFuture());
+                } else if (command.getFuture() != null) {
+                    command.getFuture().setException(new CommandException(CommandException.Reason.SUPERSEDED,
+                            "Superseded by command " + by.getOpcode() + "."));
+                }
+            }
+
+            @Override
+            public void onCommandTimedOut(Command command) {
+                Log.d(TAG, "Command " + command.getOpcode() + " timed out.");
+                // Half a response must not swallow the start of the next one.
+                responseDecoder.reset();
+            }
+        });
+
+        // Offline analytics dumps grow with the records the device holds; decode them while
+        // they arrive instead of in one go once the frame is complete.
+        responseDecoder.setPayloadListener(new FrameDecoder.PayloadListener() {
+            @Override
+            public void onPayloadStart(byte opcode, int payloadLength) {
+                usageRecordDecoder.reset();
+                usageRecords = opcode == Opcodes.QUERY_OFFLINE_ANALYTICS
+                        ? new ArrayList<UsageRecord>(payloadLength / UsageRecord.LENGTH) : null;
+            }
+
+            @Override
+            public void onPayload(byte[] buffer, int offset, int length) {
+                if (usageRecords != null) {
+                    usageRecordDecoder.feed(buffer, offset, length);
+                }
+            }
+        });
+
+        pendingTrackWrite = new PendingTrackWrite(new PendingTrackWrite.Writer() {
+            @Override
+            public CommandFuture<Void> write(byte[] track) {
+                commandEngine.getMetrics().recordTrackCacheMiss();
+                return enqueueData(FrameEncoder.pack(Opcodes.WRITE_TRACK, track), true);
+            }
+        });
+
+        watchdog = new HeartbeatWatchdog(actor, new HeartbeatWatchdog.Listener() {
+            @Override
+            public void onLinkSuspect(long silenceMillis) {
+                Log.w(TAG, address + " no heartbeat for " + silenceMillis + " ms; link suspect.");
+                listener.onLinkSuspect(address, silenceMillis);
+            }
+
+            @Override
+            public void onLinkDead(long silenceMillis) {
+                Log.w(TAG, address + " no heartbeat for " + silenceMillis + " ms; link dead.");
+                BluetoothGatt gatt = mBluetoothGatt;
+                if (autoReconnect && !disconnectRequested && gatt != null) {
+                    // As after a dropout, keep the queue for the reconnect. The stack may take
+                    // its supervision timeout to notice, so drop the link now to start one.
+                    commandEngine.suspend();
+                    listener.onLinkDead(address, silenceMillis);
+                    gatt.disconnect();
+                } else {
+                    commandEngine.abortAll();
+                    listener.onLinkDead(address, silenceMillis);
+                }
+            }
+
+            @Override
+            public void onLinkRecovered() {
+                Log.i(TAG, address + " heartbeats resumed.");
+                listener.onLinkRecovered(address);
+            }
+        });
+
+        notificationHandlers.put(oPhoneFirmwareRevisionStringCharacteristicUUID, new NotificationHandler() {
+            @Override
+            public void onNotification(final byte[] value) {
+                Log.d(TAG, "onCharacteristicChanged firmRevision");
+                actor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        setFirmwareRevision(new String(value));
+                    }
+                });
+            }
+        });
+        notificationHandlers.put(kOPhoneRXCharacteristicUUID, new NotificationHandler() {
+            @Override
+            public void onNotification(final byte[] value) {
+                // Android hands every notification a new array, so it can be passed on as is.
+                actor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onReceive(value);
+                    }
+                });
+            }
+        });
+    }
+
+    // Implements callback methods for GATT events that the app cares about.  For example,
+    // connection change and services discovered.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Log.e(TAG, address + " inside statechange method----" + newState);
+            if (newState == BluetoothProfile.STATE_DISCONNECTING) {
+                Log.d(TAG, "Disconnecting from server----");
+            }
+            if (newState == BluetoothProfile.STATE_CONNECTING) {
+                Log.d(TAG, "newState is connecting-----");
+            }
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                actor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLinkConnected();
+                    }
+                });
+                setMtu(DEFAULT_MTU);
+                Log.i(TAG, "Connected to GATT server.");
+                // Attempts to discover services after successful connection.
+                Log.i(TAG, "Attempting to start service discovery:" +
+                        gatt.discoverServices());
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                handles = null;
+                Log.i(TAG, "Disconnected from GATT server.");
+                actor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLinkLost();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                handles = GattHandles.resolve(gatt);
+                listener.onServicesDiscovered(address);
+                if (handles != null) {
+                    Log.d(TAG, "receiver found");
+                    setCharacteristicNotification(handles.rx, true);
+                } else {
+                    Log.w(TAG, address + " has no scent service; commands will fail.");
+                }
+                // Only one GATT operation can be outstanding, so the firmware revision is read
+                // once the MTU exchange has finished.
+                if (!gatt.requestMtu(PREFERRED_MTU)) {
+                    Log.w(TAG, "MTU request failed; staying at " + mtu);
+                    onLinkReady();
+                }
+
+            } else {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, address + " MTU changed to " + mtu);
+                setMtu(mtu);
+            } else {
+                Log.w(TAG, "onMtuChanged received: " + status);
+            }
+            onLinkReady();
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            Log.d(TAG, "onCharacteristicRead");
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                final byte[] value = characteristic.getValue();
+                final boolean isFirmwareRevision = oPhoneFirmwareRevisionStringCharacteristicUUID.equals(characteristic.getUuid());
+                actor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCharacteristicRead(address, value);
+                        if (isFirmwareRevision) {
+                            Log.d(TAG, "onCharacteristicRead firmRevision");
+                            setFirmwareRevision(new String(value));
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            Log.d(TAG, "onCharacteristicWrite: status:" + status);
+            final boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            actor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    commandEngine.onWriteComplete(success);
+                }
+            });
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                listener.onCharacteristicWrite(address, characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            NotificationHandler handler = notificationHandlers.get(characteristic.getUuid());
+            if (handler != null) {
+                handler.onNotification(characteristic.getValue());
+            }
+        }
+
+    };
+
+    private interface NotificationHandler {
+        void onNotification(byte[] value);
+    }
+
+    // Built once so a notification costs one UUID hash lookup, not string conversions.
+    private final Map<UUID, NotificationHandler> notificationHandlers = new HashMap<>();
+
+    private void onReceive(byte[] bytes) {
+        int firstNonHeartbeatByte = 0;
+        while (firstNonHeartbeatByte < bytes.length && bytes[firstNonHeartbeatByte] == VPHeartbeatCharacter) {
+            firstNonHeartbeatByte++;
+        }
+        if (firstNonHeartbeatByte > 0) {
+            commandEngine.getMetrics().recordHeartbeat(actor.now());
+            watchdog.onHeartbeat();
+            listener.onHeartbeat(address);
+        }
+        int length = bytes.length - firstNonHeartbeatByte;
+        if (length > 0 && commandEngine.isAwaitingResponse()) {
+            didUpdateValueWithData(bytes, firstNonHeartbeatByte, length);
+        }
+    }
+
+    // Records of the offline analytics reply being received, or null; actor thread only.
+    private List<UsageRecord> usageRecords;
+    private final UsageRecordDecoder usageRecordDecoder = new UsageRecordDecoder(new UsageRecordDecoder.Listener() {
+        @Override
+        public void onRecord(UsageRecord record) {
+            usageRecords.add(record);
+        }
+    });
+
+    private final FrameDecoder responseDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(Frame frame) {
+            if (parseResponse(frame) == VPBTResponseStatusValid) {
+                commandEngine.onResponse(frame);
+                reply = null;
+            } else {
+                Log.d(TAG, "!!! The response was invalid; sending again after timeout.");
+            }
+        }
+
+        @Override
+        public void onDiscarded(int reason, int byteCount) {
+            commandEngine.getMetrics().recordDiscardedBytes(byteCount);
+            if (reason == FrameDecoder.DISCARD_INVALID_CHECKSUM) {
+                commandEngine.getMetrics().recordChecksumFailure();
+                listener.onCommunicationError(address, "Invalid checksum.");
+            }
+            Log.d(TAG, "!!! Discarded " + byteCount + " invalid response bytes (reason " + reason + ").");
+        }
+    });
+
+    /**
+     * Called on the actor thread when the GATT connection comes up.
+     */
+    private void onLinkConnected() {
+        mConnectionState = STATE_CONNECTED;
+        reconnecting = false;
+        reconnectAttemptCancelled = false;
+        cancelReconnect();
+        reconnectBackoff.reset();
+        // After a dropout the kept queue is resumed once the link is set up again.
+        if (!commandEngine.isSuspended()) {
+            commandEngine.setConnected(true);
+        }
+        watchdog.start();
+        listener.onConnected(address);
+    }
+
+    /**
+     * Called on the actor thread when the GATT connection goes down.
+     */
+    private void onLinkLost() {
+        if (reconnectAttemptCancelled) {
+            // The timed out attempt being cancelled; the next one is already scheduled.
+            return;
+        }
+        // A failed attempt reports here; its timeout mustn't start another one.
+        cancelReconnectTimeout();
+        mConnectionState = STATE_DISCONNECTED;
+        boolean reconnect = autoReconnect && !disconnectRequested && mBluetoothGatt != null;
+        boolean wasReconnecting = reconnecting;
+        reconnecting = reconnect;
+        // Another phone may change the track while we're away.
+        verifiedTrackHash = null;
+        responseDecoder.reset();
+        watchdog.stop();
+        if (reconnect) {
+            commandEngine.suspend();
+            if (!wasReconnecting) {
+                listener.onDisconnected(address);
+            }
+            scheduleReconnect();
+        } else {
+            commandEngine.setConnected(false);
+            listener.onDisconnected(address);
+        }
+    }
+
+    /**
+     * Called once services are discovered and the MTU exchange is over.
+     */
+    private void onLinkReady() {
+        readFirmwareRevision();
+        // Commands kept over a dropout go out now. If the stack refuses a write while the
+        // firmware revision read is outstanding, the engine tries it again shortly, without
+        // counting a resend.
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                commandEngine.resume();
+            }
+        });
+    }
+
+    /**
+     * Called on the actor thread after a dropout or a failed attempt.
+     */
+    private void scheduleReconnect() {
+        if (reconnectBackoff.getAttempt() >= maxReconnectAttempts) {
+            Log.w(TAG, address + " giving up reconnecting after " + reconnectBackoff.getAttempt() + " attempts.");
+            reconnectBackoff.reset();
+            mConnectionState = STATE_DISCONNECTED;
+            reconnecting = false;
+            commandEngine.setConnected(false);
+            listener.onReconnectFailed(address);
+            return;
+        }
+        long delay = reconnectBackoff.nextDelay();
+        Log.i(TAG, address + " reconnecting in " + delay + " ms.");
+        listener.onReconnecting(address, reconnectBackoff.getAttempt(), delay);
+        pendingReconnect = actor.schedule(reconnectTask, delay);
+    }
+
+    private void reconnect() {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || disconnectRequested || !commandEngine.isSuspended()) {
+            return;
+        }
+        mConnectionState = STATE_CONNECTING;
+        reconnectAttemptCancelled = false;
+        if (gatt.connect()) {
+            pendingReconnectTimeout = actor.schedule(reconnectTimeoutTask, RECONNECT_ATTEMPT_TIMEOUT);
+        } else {
+            mConnectionState = STATE_DISCONNECTED;
+            scheduleReconnect();
+        }
+    }
+
+    private void onReconnectTimedOut() {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || disconnectRequested || mConnectionState != STATE_CONNECTING) {
+            return;
+        }
+        Log.w(TAG, address + " reconnect attempt " + reconnectBackoff.getAttempt() + " timed out.");
+        mConnectionState = STATE_DISCONNECTED;
+        reconnectAttemptCancelled = true;
+        // Cancels the background connection gatt.connect() left pending.
+        gatt.disconnect();
+        scheduleReconnect();
+    }
+
+    private void cancelReconnect() {
+        if (pendingReconnect != null) {
+            pendingReconnect.cancel();
+            pendingReconnect = null;
+        }
+        cancelReconnectTimeout();
+    }
+
+    private void cancelReconnectTimeout() {
+        if (pendingReconnectTimeout != null) {
+            pendingReconnectTimeout.cancel();
+            pendingReconnectTimeout = null;
+        }
+    }
+
+    /**
+     * Turns automatic reconnection on or off. With it on, a connection that drops without
+     * {@link BluetoothLeService#disconnect(String)} is re-established with exponential backoff
+     * and jitter, reusing the same {@code BluetoothGatt}. An attempt that hasn't connected
+     * within ten seconds counts as failed; after the last one the session is left
+     * disconnected and {@link PeripheralListener#onReconnectFailed} is reported. Pending
+     * commands are kept and sent once services have been rediscovered, unless they outlive
+     * their time to live.
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public void setMaxReconnectAttempts(int maxReconnectAttempts) {
+        this.maxReconnectAttempts = maxReconnectAttempts;
+    }
+
+    private void readFirmwareRevision() {
+        GattHandles handles = this.handles;
+        if (handles != null && handles.firmwareRevision != null) {
+            Log.d(TAG, "firmware found");
+            setCharacteristicNotification(handles.firmwareRevision, true);
+            readCharacteristic(handles.firmwareRevision);
+        }
+    }
+
+    private void setMtu(final int mtu) {
+        this.mtu = mtu;
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                commandEngine.setMaxWriteLength(mtu - ATT_WRITE_HEADER_LENGTH);
+            }
+        });
+    }
+
+    /**
+     * @return the ATT MTU in effect; outbound frames are split into writes of at most
+     * {@code getMtu() - 3} bytes.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public long getFramesWritten() {
+        return commandEngine.getFramesWritten();
+    }
+
+    public long getFragmentedFramesWritten() {
+        return commandEngine.getFragmentedFramesWritten();
+    }
+
+    public long getChunksWritten() {
+        return commandEngine.getChunksWritten();
+    }
+
+    public long getBytesWritten() {
+        return commandEngine.getBytesWritten();
+    }
+
+    /**
+     * @return round-trip times, retries, give-ups, queue depth and wait, checksum failures
+     * and heartbeat rate for this device's link.
+     */
+    public CommandMetrics.Snapshot getMetrics() {
+        return commandEngine.getMetricsSnapshot();
+    }
+
+    /**
+     * @return one of the {@code HeartbeatWatchdog.STATE_} constants.
+     */
+    public int getLinkState() {
+        return watchdog.getState();
+    }
+
+    /**
+     * @return the learned interval between heartbeats, or 0 before enough have arrived.
+     */
+    public long getExpectedHeartbeatInterval() {
+        return watchdog.getExpectedInterval();
+    }
+
+    public void resetMetrics() {
+        commandEngine.getMetrics().reset();
+    }
+
+    public long getCommandsCoalesced() {
+        return commandEngine.getCommandsCoalesced();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    void setConnectionState(final int connectionState) {
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionState = connectionState;
+            }
+        });
+    }
+
+    public byte getFirmwareRevision() {
+        return firmwareRevision;
+    }
+
+    /**
+     * Sends commands that don't wait for a response (playScent/stopScent on legacy firmware)
+     * back-to-back as write-without-response, with at most {@code window} writes awaiting
+     * their completion callback. 0 turns pipelining off.
+     */
+    public void setPipelineWindow(final int window) {
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                commandEngine.setPipelineWindow(window);
+            }
+        });
+    }
+
+    BluetoothGatt getGatt() {
+        return mBluetoothGatt;
+    }
+
+    /**
+     * Connects to the device, reusing this session's {@code BluetoothGatt} if there is one.
+     */
+    boolean connect(BluetoothDevice device) {
+        disconnectRequested = false;
+        // Posted before connecting, so it can't land after the connection callback.
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (firmwareRevision == 0x00) {
+                    // Use what we learnt last time so the first commands take the right branch.
+                    FirmwareCapabilities cached = service.getFirmwareCache().get(address);
+                    if (cached != null) {
+                        applyCapabilities(cached);
+                    }
+                }
+                reconnectAttemptCancelled = false;
+                cancelReconnect();
+                reconnectBackoff.reset();
+                mConnectionState = STATE_CONNECTING;
+            }
+        });
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt != null) {
+            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            if (gatt.connect()) {
+                return true;
+            } else {
+                setConnectionState(STATE_DISCONNECTED);
+                return false;
+            }
+        }
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        mBluetoothGatt = device.connectGatt(service, false, mGattCallback);
+        Log.d(TAG, "Trying to create a new connection.");
+        return true;
+    }
+
+    void disconnect() {
+        disconnectRequested = true;
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                reconnecting = false;
+                if (commandEngine.isSuspended()) {
+                    // Between attempts there is no disconnect callback to come.
+                    commandEngine.setConnected(false);
+                }
+            }
+        });
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return;
+        }
+        gatt.disconnect();
+    }
+
+    void close() {
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                if (pendingFirmwareQuery != null) {
+                    pendingFirmwareQuery.cancel();
+                    pendingFirmwareQuery = null;
+                }
+                commandEngine.setConnected(false);
+                watchdog.stop();
+            }
+        });
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) {
+            return;
+        }
+        mBluetoothGatt = null;
+        gatt.close();
+        handles = null;
+    }
+
+    void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return;
+        }
+        gatt.readCharacteristic(characteristic);
+    }
+
+    private byte[] chunkBuffer(int length) {
+        byte[] buffer = chunkBuffers[length];
+        if (buffer == null) {
+            buffer = new byte[length];
+            chunkBuffers[length] = buffer;
+        }
+        return buffer;
+    }
+
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] a) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || characteristic == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        characteristic.setValue(a);
+        Log.d(TAG, "writeCharacteristic");
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return;
+        }
+        gatt.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    List<BluetoothGattService> getSupportedGattServices() {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) return null;
+
+        return gatt.getServices();
+    }
+
+    boolean isCharacteristicsPresent() {
+        return handles != null;
+    }
+
+    void didUpdateValueWithData(byte[] data, int offset, int length) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "didUpdateValueWithData:" + BluetoothLeService.byteArrayToString(Arrays.copyOfRange(data, offset, offset + length)));
+        }
+        listener.onDataReceived(address, data, offset, length);
+        responseDecoder.feed(data, offset, length);
+    }
+
+    private int parseResponse(Frame frame) {
+        byte firmwareRevision = frame.getFirmwareRevision();
+        byte opcode = frame.getOpcode();
+        if (this.firmwareRevision != firmwareRevision) {
+            // Either the first answer after connecting or a cached revision that is out of date.
+            resolveFirmwareRevision(firmwareRevision);
+        }
+        Log.d(TAG, "parseResponse " + firmwareRevision + " " + frame.getStatus() + " " + opcode + " " + frame.getPayloadLength());
+        reply = null;
+        if (opcode == Opcodes.PLAY_SCENT) {
+            listener.onPlayScentAcknowledged(address);
+        } else if (opcode == Opcodes.STOP_SCENT) {
+            listener.onStopScentAcknowledged(address);
+        } else if (opcode == Opcodes.QUERY_STATUS) {
+            DeviceStatus status = DeviceStatus.decode(frame);
+            if (status == null) {
+                return VPBTResponseStatusInvalid;
+            }
+            reply = status;
+            listener.onDeviceStatus(address, status);
+            Log.d(TAG, "batteryPercentage" + status.getBatteryLevel());
+        } else if (opcode == Opcodes.WRITE_TRACK) {
+            listener.onTrackWritten(address);
+        } else if (opcode == Opcodes.READ_TRACK) {
+            byte[] storedTrack = frame.copyPayload();
+            reply = storedTrack;
+            listener.onStoredTrackRead(address, storedTrack);
+            verifiedTrackHash = TrackCache.hash(frame.getBuffer(), frame.getPayloadOffset(), frame.getPayloadLength());
+            byte[] track = pendingTrackWrite.getTrack();
+            if (track != null
+                    && pendingTrackWrite.onVerified(verifiedTrackHash.equals(TrackCache.hash(track, 0, track.length)))) {
+                commandEngine.getMetrics().recordTrackCacheHit();
+                listener.onTrackWritten(address);
+            }
+        } else if (opcode == Opcodes.QUERY_RFID) {
+            RfidTag tag = RfidTag.decode(frame);
+            if (tag == null) {
+                return VPBTResponseStatusInvalid;
+            }
+            Log.d(TAG,">>>>> RFIDRead:"+tag.getValid()+", "+tag.getVersion()+", "+tag.getDeviceType()+", " + tag.getFamilyCode()+", "+BluetoothLeService.byteArrayToString(tag.getIdentifier())+", ");
+            reply = tag;
+            listener.onRfidRead(address, tag);
+        } else if (opcode == Opcodes.QUERY_OFFLINE_ANALYTICS) {
+            listener.onOfflineAnalyticsRead(address, frame.getBuffer(), frame.getPayloadOffset(), frame.getPayloadLength());
+            List<UsageRecord> records = usageRecords;
+            usageRecords = null;
+            if (usageRecordDecoder.getPendingByteCount() > 0) {
+                Log.w(TAG, "Ignoring " + usageRecordDecoder.getPendingByteCount() + " trailing analytics bytes.");
+            }
+            reply = records;
+            if (analyticsSync != null) {
+                CommandFuture<Integer> sync = analyticsSync;
+                analyticsSync = null;
+                if (usageRecordDecoder.getPendingByteCount() == 0) {
+                    storeOfflineAnalytics(records, sync);
+                } else {
+                    // Clearing would lose whatever the trailing bytes were; try again next sync.
+                    Log.w(TAG, "Offline analytics aren't whole records; leaving them on the device.");
+                    listener.onCommunicationError(address, "Malformed offline analytics.");
+                    sync.setException(new CommandException(CommandException.Reason.MALFORMED_RESPONSE,
+                            "Offline analytics aren't whole records."));
+                }
+            }
+        }
+        return VPBTResponseStatusValid;
+    }
+
+    /**
+     * Called on the actor thread with the device information firmware revision string.
+     */
+    private void setFirmwareRevision(String stringFromData) {
+        firmwareRevisionString = stringFromData;
+        if ("Firmware Revision".equals(stringFromData)) {
+            resolveFirmwareRevision((byte) 0x15);
+        } else if (stringFromData.contains("Revision")) {
+            FirmwareCache cache = service.getFirmwareCache();
+            FirmwareCapabilities cached = cache.get(address);
+            if (cached != null && stringFromData.equals(cache.getRevisionString(address))) {
+                applyCapabilities(cached);
+                listener.onFirmwareRevision(address, firmwareRevision);
+            } else {
+                applyCapabilities(FirmwareCapabilities.forRevision((byte) 0x00));
+            }
+            // With a cached revision commands go ahead meanwhile; this only confirms it.
+            if (pendingFirmwareQuery != null) {
+                pendingFirmwareQuery.cancel();
+            }
+            pendingFirmwareQuery = actor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pendingFirmwareQuery = null;
+                    queryNonLegacyFirmwareForVersion();
+                }
+            }, 1000);
+            Log.e(TAG, address + " firmwareRevision=" + firmwareRevision);
+        } else {
+            // oPhones end up here
+            resolveFirmwareRevision((byte) 0x15);
+        }
+    }
+
+    private void resolveFirmwareRevision(byte revision) {
+        FirmwareCapabilities resolved = FirmwareCapabilities.forRevision(revision);
+        applyCapabilities(resolved);
+        if (firmwareRevisionString != null) {
+            service.getFirmwareCache().put(address, firmwareRevisionString, resolved);
+        }
+        Log.e(TAG, address + " firmwareRevision=" + firmwareRevision);
+        listener.onFirmwareRevision(address, firmwareRevision);
+    }
+
+    private void applyCapabilities(FirmwareCapabilities capabilities) {
+        this.capabilities = capabilities;
+        firmwareRevision = capabilities.getRevision();
+    }
+
+    /**
+     * @return what the firmware supports; on a reconnect this is the cached value until the
+     * device has confirmed its revision.
+     */
+    public FirmwareCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Plays a scent. The future completes when the device acknowledges it, or for legacy
+     * firmware, which doesn't acknowledge, once the write has gone out.
+     */
+    public CommandFuture<Void> playScent(int duration, int intensity, String scentCode) {
+        boolean legacy = !capabilities.isFramedProtocol();
+        Command command = new Command(playFrames.get(duration, intensity, scentCode, legacy), !legacy);
+        command.setTimeToLive(PLAY_SCENT_TIME_TO_LIVE);
+        return enqueue(command);
+    }
+
+    public CommandFuture<Void> stopScent() {
+        Log.d(TAG, "stopScent");
+        if (!capabilities.isFramedProtocol()) {
+            return enqueueData(FrameEncoder.legacyStopScent());
+        } else {
+            return transmitDataWithoutPayloadToCommand(Opcodes.STOP_SCENT);
+        }
+    }
+
+    public CommandFuture<DeviceStatus> queryForStatus() {
+        if (!capabilities.isFramedProtocol()) {
+            return unsupported("Legacy code can't query.");
+        }
+        return transmitDataWithoutPayloadToCommand(Opcodes.QUERY_STATUS);
+    }
+
+    public CommandFuture<DeviceStatus> queryNonLegacyFirmwareForVersion(){
+        return transmitDataWithoutPayloadToCommand(Opcodes.QUERY_STATUS);
+    }
+
+    /**
+     * Plays a timeline of cues, starting {@code position} milliseconds into it. Every frame
+     * is encoded before the first cue goes out.
+     *
+     * @return the player, for cancelling.
+     */
+    public TimelinePlayer playTimeline(ScentTimeline timeline, final long position, TimelinePlayer.Listener timelineListener) {
+        boolean legacy = !capabilities.isFramedProtocol();
+        long lead = TimelinePlayer.estimateLead(commandEngine.getMetricsSnapshot(), legacy);
+        final TimelinePlayer player = new TimelinePlayer(timeline, legacy, lead, actor, new TimelinePlayer.Sink() {
+            @Override
+            public void send(Command command) {
+                enqueueOnActor(command);
+            }
+        }, timelineListener);
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                player.start(position);
+            }
+        });
+        return player;
+    }
+
+    /**
+     * Writes a track to the device, unless it is known to hold those bytes already, in which
+     * case {@link PeripheralListener#onTrackWritten} is reported and the future completes
+     * straight away. A track last written on an earlier connection is checked with a read
+     * first.
+     */
+    public CommandFuture<Void> writeTrackPayload(final byte[] payload) {
+        final CommandFuture<Void> future = new CommandFuture<>();
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeTrack(payload, future);
+            }
+        });
+        return future;
+    }
+
+    private void writeTrack(byte[] payload, CommandFuture<Void> future) {
+        if (!capabilities.isStoredTrack()) {
+            Log.d(TAG, "Legacy code can't write track.");
+            future.setException(new CommandException(CommandException.Reason.UNSUPPORTED,
+                    "Legacy code can't write track."));
+        } else if (payload.length > oPBTPeripheralMaxStoredTrackSize) {
+            future.setException(new CommandException(CommandException.Reason.INVALID_ARGUMENT,
+                    "Track is " + payload.length + " bytes; at most " + oPBTPeripheralMaxStoredTrackSize + " fit."));
+        } else {
+            String hash = TrackCache.hash(payload, 0, payload.length);
+            if (hash.equals(verifiedTrackHash)) {
+                commandEngine.getMetrics().recordTrackCacheHit();
+                listener.onTrackWritten(address);
+                future.set(null);
+            } else if (hash.equals(service.getTrackCache().get(address))) {
+                // If the read fails, even before it is sent, the track is written anyway.
+                pendingTrackWrite.hold(payload, future, transmitDataWithoutPayloadToCommand(Opcodes.READ_TRACK));
+            } else {
+                commandEngine.getMetrics().recordTrackCacheMiss();
+                byte[] finalBytes = FrameEncoder.pack(Opcodes.WRITE_TRACK, payload);
+                future.setFrom(this.<Void>enqueueData(finalBytes, true));
+            }
+        }
+    }
+
+    /**
+     * Forgets which track the device holds, so the next {@link #writeTrackPayload} always
+     * writes.
+     */
+    public void invalidateTrackCache() {
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                verifiedTrackHash = null;
+            }
+        });
+        service.getTrackCache().remove(address);
+    }
+
+    public CommandFuture<byte[]> readTrackPayload() {
+        if (!capabilities.isStoredTrack()) {
+            return unsupported("Legacy code can't read track.");
+        }
+        return transmitDataWithoutPayloadToCommand(Opcodes.READ_TRACK);
+    }
+
+    public CommandFuture<RfidTag> queryForRFID() {
+        if (!capabilities.isRfid()) {
+            return unsupported("Legacy code can't query.");
+        }
+        return transmitDataWithoutPayloadToCommand(Opcodes.QUERY_RFID);
+    }
+
+    public CommandFuture<List<UsageRecord>> queryForOfflineAnalytics() {
+        if (!capabilities.isOfflineAnalytics()) {
+            return unsupported("Legacy code can't query.");
+        }
+        return transmitDataWithoutPayloadToCommand(Opcodes.QUERY_OFFLINE_ANALYTICS);
+    }
+
+    /**
+     * Reads the device's offline analytics, appends them to the service's
+     * {@link AnalyticsLog} and clears them on the device once the append is on storage.
+     * {@link PeripheralListener#onOfflineAnalyticsStored} reports the outcome.
+     *
+     * @return a future for the number of records stored. If the query fails nothing is
+     * stored; a sync requested while one is outstanding shares its future.
+     */
+    public CommandFuture<Integer> syncOfflineAnalytics() {
+        if (!capabilities.isOfflineAnalytics()) {
+            return unsupported("Legacy code can't query.");
+        }
+        final CommandFuture<Integer> future = new CommandFuture<>();
+        actor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (analyticsSync != null) {
+                    future.setFrom(analyticsSync);
+                    return;
+                }
+                analyticsSync = future;
+                queryForOfflineAnalytics().addCallback(new CommandFuture.Callback<List<UsageRecord>>() {
+                    @Override
+                    public void onSuccess(List<UsageRecord> records) {
+                        // parseResponse() has handed the records to the sync already.
+                    }
+
+                    @Override
+                    public void onFailure(CommandException error) {
+                        // Otherwise an unrelated analytics reply later would be stored and cleared.
+                        if (analyticsSync == future) {
+                            analyticsSync = null;
+                        }
+                        future.setException(error);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    private void storeOfflineAnalytics(final List<UsageRecord> records, final CommandFuture<Integer> sync) {
+        // Syncing to storage can take a while; keep it off the Bluetooth thread.
+        service.getStorageExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    service.getAnalyticsLog().append(address, records);
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't store offline analytics; leaving them on the device.", e);
+                    listener.onCommunicationError(address, "Couldn't store offline analytics.");
+                    sync.setException(new CommandException(CommandException.Reason.STORAGE_FAILED,
+                            "Couldn't store offline analytics: " + e.getMessage()));
+                    return;
+                }
+                if (!records.isEmpty()) {
+                    clearOfflineAnalytics();
+                }
+                listener.onOfflineAnalyticsStored(address, records.size());
+                sync.set(records.size());
+            }
+        });
+    }
+
+    public CommandFuture<Void> clearOfflineAnalytics() {
+        if (!capabilities.isOfflineAnalytics()) {
+            return unsupported("Legacy code can't clear analytics.");
+        }
+        return transmitDataWithoutPayloadToCommand(Opcodes.CLEAR_OFFLINE_ANALYTICS);
+    }
+
+    public CommandFuture<Void> enableTimeout(boolean isEnable) {
+        if (!capabilities.isFramedProtocol()) {
+            return unsupported("Legacy code can't enable timeout on device.");
+        }
+        return enqueueData(FrameEncoder.enableTimeout(isEnable), true);
+    }
+
+    public CommandFuture<Void> writeSettingsWithFanSpeed(int fanSpeedPercentage, boolean isTimeoutOn, int timeoutMinutes,boolean isAutoPlayOn,int autoPlaySeconds) {
+        FirmwareCapabilities capabilities = this.capabilities;
+        if (!capabilities.isFramedProtocol()) {
+            return unsupported("Legacy code can't write settings to device.");
+        }
+        byte[] finalBytes = settingsFrames.acquire(fanSpeedPercentage, isTimeoutOn, timeoutMinutes,
+                isAutoPlayOn, autoPlaySeconds, capabilities.isExtendedSettings());
+        return enqueueData(finalBytes,true);
+    }
+
+    private <T> CommandFuture<T> unsupported(String message) {
+        Log.d(TAG, message);
+        return CommandFuture.failed(new CommandException(CommandException.Reason.UNSUPPORTED, message));
+    }
+
+    private <T> CommandFuture<T> transmitDataWithoutPayloadToCommand(byte command) {
+        return enqueueData(FrameEncoder.packEmpty(command),true);
+    }
+
+    private <T> CommandFuture<T> enqueueData(byte[] finalBytes){
+        return enqueueData(finalBytes,false);
+    }
+
+    private <T> CommandFuture<T> enqueueData(byte[] finalBytes,boolean waitForResponse) {
+        return enqueue(new Command(finalBytes, waitForResponse));
+    }
+
+    /**
+     * Sends a command, giving it a future that is completed from the engine's listener.
+     */
+    private <T> CommandFuture<T> enqueue(final Command command) {
+        final CommandFuture<T> future = new CommandFuture<>();
+        command.setFuture(future);
+        if (actor.isActorThread()) {
+            enqueueOnActor(command);
+        } else {
+            actor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    enqueueOnActor(command);
+                }
+            });
+        }
+        return future;
+    }
+
+    private void enqueueOnActor(Command command) {
+        // While reconnecting the command waits for the link to come back.
+        if (!commandEngine.isSuspended()) {
+            if (mConnectionState != STATE_CONNECTED) {
+                fail(command, new CommandException(CommandException.Reason.NOT_CONNECTED, "Not connected."));
+                return;
+            }
+            if (handles == null) {
+                fail(command, new CommandException(CommandException.Reason.NOT_READY,
+                        "Services not discovered yet."));
+                return;
+            }
+        }
+        if (!commandEngine.enqueue(command)) {
+            // The link went down between the checks above and the engine seeing it.
+            fail(command, new CommandException(CommandException.Reason.NOT_CONNECTED, "Not connected."));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void complete(Command command, Object reply) {
+        CommandFuture<Object> future = (CommandFuture<Object>) command.getFuture();
+        if (future != null) {
+            future.set(reply);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setFrom(CommandFuture<?> future, CommandFuture<?> from) {
+        ((CommandFuture<Object>) future).setFrom(from);
+    }
+
+    /**
+     * Hands back what a command borrowed once the engine is done with it.
+     */
+    private void finished(Command command) {
+        if (command.getOpcode() == Opcodes.WRITE_SETTINGS) {
+            settingsFrames.release(command.getFrame());
+        }
+    }
+
+    private void fail(Command command, CommandException error) {
+        Log.w(TAG, address + " command " + command.getOpcode() + " failed: " + error.getMessage());
+        finished(command);
+        listener.onCommandFailed(address, command.getOpcode(), error);
+        if (command.getFuture() != null) {
+            command.getFuture().setException(error);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.blescent.library;
+
+import android.content.SharedPreferences;
+
+import com.blescent.protocol.FirmwareCapabilities;
+
+/**
+ * Remembers, per device address, the firmware revision string and the revision and
+ * capabilities it resolved to, so a reconnect can use them before they have been read again.
+ */
+class FirmwareCache {
+    private static final String REVISION_STRING = ".revisionString";
+    private static final String REVISION = ".revision";
+    private static final String FLAGS = ".flags";
+
+    private final SharedPreferences preferences;
+
+    FirmwareCache(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * @return the cached capabilities, or null if none are known.
+     */
+    FirmwareCapabilities get(String address) {
+        if (!preferences.contains(address + REVISION)) {
+            return null;
+        }
+        return new FirmwareCapabilities((byte) preferences.getInt(address + REVISION, 0),
+                preferences.getInt(address + FLAGS, 0));
+    }
+
+    String getRevisionString(String address) {
+        return preferences.getString(address + REVISION_STRING, null);
+    }
+
+    void put(String address, String revisionString, FirmwareCapabilities capabilities) {
+        preferences.edit()
+                .putString(address + REVISION_STRING, revisionString)
+                .putInt(address + REVISION, capabilities.getRevision())
+                .putInt(address + FLAGS, capabilities.getFlags())
+                .apply();
+    }
+
+    void remove(String address) {
+        preferences.edit()
+                .remove(address + REVISION_STRING)
+                .remove(address + REVISION)
+                .remove(address + FLAGS)
+                .apply();
+    }
+}
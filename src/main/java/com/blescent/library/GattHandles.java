@@ -0,0 +1,48 @@
+package com.blescent.library;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import static com.blescent.library.BluetoothLeService.bluetoothDeviceInformationServiceUUID;
+import static com.blescent.library.BluetoothLeService.kOPhoneRXCharacteristicUUID;
+import static com.blescent.library.BluetoothLeService.kOPhoneServiceUUID;
+import static com.blescent.library.BluetoothLeService.kOPhoneTXCharacteristicUUID;
+import static com.blescent.library.BluetoothLeService.oPhoneFirmwareRevisionStringCharacteristicUUID;
+
+/**
+ * The characteristics a session uses, looked up once after service discovery and valid for
+ * the rest of that connection.
+ */
+final class GattHandles {
+    final BluetoothGattCharacteristic tx;
+    final BluetoothGattCharacteristic rx;
+    // Null on devices without a firmware revision characteristic.
+    final BluetoothGattCharacteristic firmwareRevision;
+
+    private GattHandles(BluetoothGattCharacteristic tx, BluetoothGattCharacteristic rx,
+                        BluetoothGattCharacteristic firmwareRevision) {
+        this.tx = tx;
+        this.rx = rx;
+        this.firmwareRevision = firmwareRevision;
+    }
+
+    /**
+     * @return the handles, or null if the scent service or its characteristics are missing.
+     */
+    static GattHandles resolve(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(kOPhoneServiceUUID);
+        if (service == null) {
+            return null;
+        }
+        BluetoothGattCharacteristic tx = service.getCharacteristic(kOPhoneTXCharacteristicUUID);
+        BluetoothGattCharacteristic rx = service.getCharacteristic(kOPhoneRXCharacteristicUUID);
+        if (tx == null || rx == null) {
+            return null;
+        }
+        BluetoothGattService deviceInformation = gatt.getService(bluetoothDeviceInformationServiceUUID);
+        BluetoothGattCharacteristic firmwareRevision = deviceInformation == null ? null
+                : deviceInformation.getCharacteristic(oPhoneFirmwareRevisionStringCharacteristicUUID);
+        return new GattHandles(tx, rx, firmwareRevision);
+    }
+}
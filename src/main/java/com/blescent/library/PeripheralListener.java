@@ -0,0 +1,107 @@
+package com.blescent.library;
+
+import com.blescent.protocol.CommandException;
+import com.blescent.protocol.DeviceStatus;
+import com.blescent.protocol.RfidTag;
+
+/**
+ * Receives decoded events from connected peripherals. Register with
+ * {@link BluetoothLeService#addPeripheralListener(PeripheralListener)}; every method is
+ * called with the address of the device the event is for, on the Bluetooth binder thread or
+ * the service's protocol thread, so implementations should return quickly. Extend
+ * {@link PeripheralListenerAdapter} to only override the events you need.
+ */
+public interface PeripheralListener {
+
+    void onConnected(String address);
+
+    void onDisconnected(String address);
+
+    void onServicesDiscovered(String address);
+
+    /**
+     * Called before each automatic reconnection attempt after a dropout.
+     *
+     * @param attempt the attempt number, starting at 1.
+     */
+    void onReconnecting(String address, int attempt, long delayMillis);
+
+    /**
+     * Called when automatic reconnection gave up; pending commands have been given up too.
+     */
+    void onReconnectFailed(String address);
+
+    void onFirmwareRevision(String address, byte firmwareRevision);
+
+    /**
+     * Called with the value of every successful characteristic read.
+     */
+    void onCharacteristicRead(String address, byte[] value);
+
+    /**
+     * Called with the value of every successful characteristic write.
+     */
+    void onCharacteristicWrite(String address, byte[] value);
+
+    void onHeartbeat(String address);
+
+    /**
+     * Called when heartbeats are overdue; the link may still recover.
+     */
+    void onLinkSuspect(String address, long silenceMillis);
+
+    /**
+     * Called when heartbeats have been missing long enough that the link is taken to be
+     * gone. With automatic reconnection on, the connection is dropped so that a fresh one is
+     * brought up, and queued commands are kept for it unless they expire first; otherwise
+     * they have all been given up by then.
+     */
+    void onLinkDead(String address, long silenceMillis);
+
+    /**
+     * Called when heartbeats resume after {@link #onLinkSuspect} or {@link #onLinkDead}.
+     */
+    void onLinkRecovered(String address);
+
+    /**
+     * Called with every chunk of response data, heartbeats stripped, before it is decoded.
+     * The chunk is {@code data[offset, offset + length)}.
+     */
+    void onDataReceived(String address, byte[] data, int offset, int length);
+
+    void onPlayScentAcknowledged(String address);
+
+    void onStopScentAcknowledged(String address);
+
+    void onDeviceStatus(String address, DeviceStatus status);
+
+    void onTrackWritten(String address);
+
+    void onStoredTrackRead(String address, byte[] track);
+
+    void onRfidRead(String address, RfidTag tag);
+
+    /**
+     * Called with the raw offline analytics dump, {@code data[offset, offset + length)}. The
+     * bytes are only valid during the call; copy them to keep them.
+     */
+    void onOfflineAnalyticsRead(String address, byte[] data, int offset, int length);
+
+    /**
+     * Called, on a background thread, once records fetched by
+     * {@link DeviceSession#syncOfflineAnalytics()} are on storage and clearing them on the
+     * device has been queued.
+     */
+    void onOfflineAnalyticsStored(String address, int recordCount);
+
+    void onCommunicationError(String address, String message);
+
+    /**
+     * Called on the protocol thread when a command fails: it couldn't be queued, or it was
+     * given up because its resends timed out, its write failed, the link was lost or it
+     * expired. The command's future fails with the same error.
+     *
+     * @param opcode the command's opcode, or {@code Command.NO_OPCODE} for legacy frames.
+     */
+    void onCommandFailed(String address, int opcode, CommandException error);
+}
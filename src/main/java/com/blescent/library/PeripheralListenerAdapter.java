@@ -0,0 +1,104 @@
+package com.blescent.library;
+
+import com.blescent.protocol.CommandException;
+import com.blescent.protocol.DeviceStatus;
+import com.blescent.protocol.RfidTag;
+
+/**
+ * A {@link PeripheralListener} with empty methods, for listeners that only care about a
+ * few events.
+ */
+public abstract class PeripheralListenerAdapter implements PeripheralListener {
+
+    @Override
+    public void onConnected(String address) {
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+    }
+
+    @Override
+    public void onReconnecting(String address, int attempt, long delayMillis) {
+    }
+
+    @Override
+    public void onReconnectFailed(String address) {
+    }
+
+    @Override
+    public void onFirmwareRevision(String address, byte firmwareRevision) {
+    }
+
+    @Override
+    public void onCharacteristicRead(String address, byte[] value) {
+    }
+
+    @Override
+    public void onCharacteristicWrite(String address, byte[] value) {
+    }
+
+    @Override
+    public void onHeartbeat(String address) {
+    }
+
+    @Override
+    public void onLinkSuspect(String address, long silenceMillis) {
+    }
+
+    @Override
+    public void onLinkDead(String address, long silenceMillis) {
+    }
+
+    @Override
+    public void onLinkRecovered(String address) {
+    }
+
+    @Override
+    public void onDataReceived(String address, byte[] data, int offset, int length) {
+    }
+
+    @Override
+    public void onPlayScentAcknowledged(String address) {
+    }
+
+    @Override
+    public void onStopScentAcknowledged(String address) {
+    }
+
+    @Override
+    public void onDeviceStatus(String address, DeviceStatus status) {
+    }
+
+    @Override
+    public void onTrackWritten(String address) {
+    }
+
+    @Override
+    public void onStoredTrackRead(String address, byte[] track) {
+    }
+
+    @Override
+    public void onRfidRead(String address, RfidTag tag) {
+    }
+
+    @Override
+    public void onOfflineAnalyticsRead(String address, byte[] data, int offset, int length) {
+    }
+
+    @Override
+    public void onOfflineAnalyticsStored(String address, int recordCount) {
+    }
+
+    @Override
+    public void onCommunicationError(String address, String message) {
+    }
+
+    @Override
+    public void onCommandFailed(String address, int opcode, CommandException error) {
+    }
+}
@@ -0,0 +1,187 @@
+package com.blescent.library;
+
+import com.blescent.protocol.CommandException;
+import com.blescent.protocol.DeviceStatus;
+import com.blescent.protocol.RfidTag;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fans events out to every registered {@link PeripheralListener}. Registration can happen
+ * on any thread while events are being delivered.
+ */
+class PeripheralListenerRegistry implements PeripheralListener {
+    private final List<PeripheralListener> listeners = new CopyOnWriteArrayList<>();
+
+    void add(PeripheralListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    void remove(PeripheralListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void onConnected(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onConnected(address);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onDisconnected(address);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onServicesDiscovered(address);
+        }
+    }
+
+    @Override
+    public void onReconnecting(String address, int attempt, long delayMillis) {
+        for (PeripheralListener listener : listeners) {
+            listener.onReconnecting(address, attempt, delayMillis);
+        }
+    }
+
+    @Override
+    public void onReconnectFailed(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onReconnectFailed(address);
+        }
+    }
+
+    @Override
+    public void onFirmwareRevision(String address, byte firmwareRevision) {
+        for (PeripheralListener listener : listeners) {
+            listener.onFirmwareRevision(address, firmwareRevision);
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(String address, byte[] value) {
+        for (PeripheralListener listener : listeners) {
+            listener.onCharacteristicRead(address, value);
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite(String address, byte[] value) {
+        for (PeripheralListener listener : listeners) {
+            listener.onCharacteristicWrite(address, value);
+        }
+    }
+
+    @Override
+    public void onHeartbeat(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onHeartbeat(address);
+        }
+    }
+
+    @Override
+    public void onLinkSuspect(String address, long silenceMillis) {
+        for (PeripheralListener listener : listeners) {
+            listener.onLinkSuspect(address, silenceMillis);
+        }
+    }
+
+    @Override
+    public void onLinkDead(String address, long silenceMillis) {
+        for (PeripheralListener listener : listeners) {
+            listener.onLinkDead(address, silenceMillis);
+        }
+    }
+
+    @Override
+    public void onLinkRecovered(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onLinkRecovered(address);
+        }
+    }
+
+    @Override
+    public void onDataReceived(String address, byte[] data, int offset, int length) {
+        for (PeripheralListener listener : listeners) {
+            listener.onDataReceived(address, data, offset, length);
+        }
+    }
+
+    @Override
+    public void onPlayScentAcknowledged(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onPlayScentAcknowledged(address);
+        }
+    }
+
+    @Override
+    public void onStopScentAcknowledged(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onStopScentAcknowledged(address);
+        }
+    }
+
+    @Override
+    public void onDeviceStatus(String address, DeviceStatus status) {
+        for (PeripheralListener listener : listeners) {
+            listener.onDeviceStatus(address, status);
+        }
+    }
+
+    @Override
+    public void onTrackWritten(String address) {
+        for (PeripheralListener listener : listeners) {
+            listener.onTrackWritten(address);
+        }
+    }
+
+    @Override
+    public void onStoredTrackRead(String address, byte[] track) {
+        for (PeripheralListener listener : listeners) {
+            listener.onStoredTrackRead(address, track);
+        }
+    }
+
+    @Override
+    public void onRfidRead(String address, RfidTag tag) {
+        for (PeripheralListener listener : listeners) {
+            listener.onRfidRead(address, tag);
+        }
+    }
+
+    @Override
+    public void onOfflineAnalyticsRead(String address, byte[] data, int offset, int length) {
+        for (PeripheralListener listener : listeners) {
+            listener.onOfflineAnalyticsRead(address, data, offset, length);
+        }
+    }
+
+    @Override
+    public void onOfflineAnalyticsStored(String address, int recordCount) {
+        for (PeripheralListener listener : listeners) {
+            listener.onOfflineAnalyticsStored(address, recordCount);
+        }
+    }
+
+    @Override
+    public void onCommunicationError(String address, String message) {
+        for (PeripheralListener listener : listeners) {
+            listener.onCommunicationError(address, message);
+        }
+    }
+
+    @Override
+    public void onCommandFailed(String address, int opcode, CommandException error) {
+        for (PeripheralListener listener : listeners) {
+            listener.onCommandFailed(address, opcode, error);
+        }
+    }
+}
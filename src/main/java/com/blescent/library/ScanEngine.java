@@ -0,0 +1,229 @@
+package com.blescent.library;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.blescent.protocol.ScanResultCache;
+import com.blescent.protocol.ScannedDevice;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scans for devices advertising the scent service with {@link BluetoothLeScanner}, filtered
+ * in the controller and batched there when it supports it. Advertisements only update the
+ * {@link ScanResultCache}; the listener is handed what changed on a fixed beat, so a busy
+ * room doesn't turn into a callback per advertisement.
+ * <p>
+ * The cache outlives a scan, so the nearest recently seen device can be looked up without
+ * scanning again. Times are {@link SystemClock#elapsedRealtime()}.
+ */
+class ScanEngine {
+    private final static String TAG = ScanEngine.class.getSimpleName();
+
+    // How often the listener is told about changes.
+    static final long UPDATE_INTERVAL = 250;
+    // How long the controller may hold results before delivering them, where it can batch.
+    static final long BATCH_REPORT_DELAY = 1000;
+    // Silence after which a device is reported lost while scanning.
+    static final long DEVICE_LOST_AFTER = 10000;
+    // How long a stop waits for the results it flushes out of the controller.
+    static final long FLUSH_TIMEOUT = 500;
+
+    private final BluetoothAdapter adapter;
+    private final ScanResultCache cache = new ScanResultCache();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private BluetoothLeScanner scanner;
+    private ScanListener listener;
+    private boolean batching;
+    // Set from a stop until the flushed batch has arrived and the scan is stopped.
+    private boolean flushing;
+
+    private final ScanCallback callback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            record(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                record(result);
+            }
+            boolean flushed;
+            synchronized (ScanEngine.this) {
+                flushed = flushing;
+            }
+            if (flushed) {
+                handler.post(finishStopTask);
+            }
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ScanListener scanListener = stopInternal();
+                    if (scanListener != null) {
+                        scanListener.onScanFailed(errorCode);
+                    }
+                }
+            });
+        }
+    };
+
+    private final Runnable updateTask = new Runnable() {
+        @Override
+        public void run() {
+            deliverChanges();
+            handler.postDelayed(this, UPDATE_INTERVAL);
+        }
+    };
+
+    private final Runnable finishStopTask = new Runnable() {
+        @Override
+        public void run() {
+            finishStop();
+        }
+    };
+
+    ScanEngine(BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * Starts scanning, replacing the listener of a scan already running.
+     *
+     * @return false if scanning isn't possible, e.g. because Bluetooth is off.
+     */
+    synchronized boolean start(ScanListener listener) {
+        this.listener = listener;
+        if (scanner != null) {
+            if (flushing) {
+                // Started again before the stop went through; keep scanning.
+                flushing = false;
+                handler.removeCallbacks(finishStopTask);
+            }
+            return true;
+        }
+        BluetoothLeScanner leScanner = adapter.getBluetoothLeScanner();
+        if (leScanner == null) {
+            return false;
+        }
+        ScanFilter filter = new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(BluetoothLeService.kOPhoneServiceUUID))
+                .build();
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        batching = adapter.isOffloadedScanBatchingSupported();
+        if (batching) {
+            settings.setReportDelay(BATCH_REPORT_DELAY);
+        }
+        leScanner.startScan(Collections.singletonList(filter), settings.build(), callback);
+        scanner = leScanner;
+        handler.postDelayed(updateTask, UPDATE_INTERVAL);
+        return true;
+    }
+
+    /**
+     * Stops scanning. Where the controller batches, the results it still holds are flushed
+     * first; they arrive asynchronously, so the scan is only stopped once they have, or
+     * after {@link #FLUSH_TIMEOUT} if none come.
+     */
+    void stop() {
+        synchronized (this) {
+            if (flushing) {
+                return;
+            }
+            if (scanner != null && batching) {
+                flushing = true;
+                scanner.flushPendingScanResults(callback);
+                handler.postDelayed(finishStopTask, FLUSH_TIMEOUT);
+                return;
+            }
+        }
+        stopInternal();
+        deliverChanges();
+    }
+
+    private void finishStop() {
+        synchronized (this) {
+            if (!flushing) {
+                return;
+            }
+        }
+        stopInternal();
+        deliverChanges();
+    }
+
+    private synchronized ScanListener stopInternal() {
+        ScanListener scanListener = listener;
+        flushing = false;
+        handler.removeCallbacks(finishStopTask);
+        handler.removeCallbacks(updateTask);
+        if (scanner != null) {
+            try {
+                scanner.stopScan(callback);
+            } catch (IllegalStateException e) {
+                // Bluetooth was turned off under us; the scan is gone either way.
+                Log.w(TAG, "Couldn't stop scan", e);
+            }
+            scanner = null;
+        }
+        return scanListener;
+    }
+
+    synchronized boolean isScanning() {
+        return scanner != null;
+    }
+
+    /**
+     * @return the device with the strongest signal among those heard from in the last
+     * {@code maxAge} milliseconds, or null.
+     */
+    ScannedDevice getNearest(long maxAge) {
+        return cache.getNearest(SystemClock.elapsedRealtime(), maxAge);
+    }
+
+    List<ScannedDevice> getDevices() {
+        return cache.getDevices();
+    }
+
+    private void record(ScanResult result) {
+        if (result.getDevice() == null) {
+            return;
+        }
+        ScanRecord scanRecord = result.getScanRecord();
+        // Batched results arrive late; their own timestamp says when they were heard.
+        long seen = result.getTimestampNanos() / 1000000;
+        cache.onAdvertisement(result.getDevice().getAddress(),
+                scanRecord == null ? null : scanRecord.getDeviceName(), result.getRssi(), seen);
+    }
+
+    private void deliverChanges() {
+        ScanListener scanListener;
+        boolean scanning;
+        synchronized (this) {
+            scanListener = listener;
+            scanning = scanner != null;
+        }
+        List<ScannedDevice> changed = cache.takeChanged();
+        List<String> lost = !scanning ? Collections.<String>emptyList()
+                : cache.takeLost(SystemClock.elapsedRealtime(), DEVICE_LOST_AFTER);
+        if (scanListener != null && (!changed.isEmpty() || !lost.isEmpty())) {
+            scanListener.onDevicesChanged(changed, lost);
+        }
+    }
+}
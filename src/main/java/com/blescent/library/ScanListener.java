@@ -0,0 +1,24 @@
+package com.blescent.library;
+
+import com.blescent.protocol.ScannedDevice;
+
+import java.util.List;
+
+/**
+ * Receives the results of {@link BluetoothLeService#startScan(ScanListener)} as deltas, on
+ * the main thread and at most every {@link ScanEngine#UPDATE_INTERVAL} milliseconds.
+ */
+public interface ScanListener {
+    /**
+     * @param changed devices seen for the first time, or whose name or smoothed RSSI changed
+     *                noticeably, since the last call.
+     * @param lost    addresses of devices that haven't advertised for
+     *                {@link ScanEngine#DEVICE_LOST_AFTER} milliseconds.
+     */
+    void onDevicesChanged(List<ScannedDevice> changed, List<String> lost);
+
+    /**
+     * @param errorCode one of the {@code ScanCallback.SCAN_FAILED_*} codes.
+     */
+    void onScanFailed(int errorCode);
+}
@@ -0,0 +1,47 @@
+package com.blescent.library;
+
+import android.content.SharedPreferences;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Remembers, per device address, the SHA-256 of the last track successfully written to it,
+ * so writing the same track again can be skipped. Survives restarts of the app.
+ */
+class TrackCache {
+    private final SharedPreferences preferences;
+
+    TrackCache(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    static String hash(byte[] bytes, int offset, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256.
+            throw new IllegalStateException(e);
+        }
+        digest.update(bytes, offset, length);
+        byte[] hash = digest.digest();
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    String get(String address) {
+        return preferences.getString(address, null);
+    }
+
+    void put(String address, String hash) {
+        preferences.edit().putString(address, hash).apply();
+    }
+
+    void remove(String address) {
+        preferences.edit().remove(address).apply();
+    }
+}